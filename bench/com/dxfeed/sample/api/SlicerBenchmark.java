@@ -0,0 +1,80 @@
+package com.dxfeed.sample.api;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import quotail.bench.Fixtures;
+
+import com.dxfeed.event.market.Order;
+import com.dxfeed.event.market.Side;
+import com.dxfeed.event.market.TimeAndSale;
+
+// summarizing a batch of finished slices, one per fixture contract. each slice has a book of levels price
+// levels a side around the contract's first bid and ask and the contract's fixture trades aggregated as its sales.
+// output goes to a writer that discards it. lives in the Slicer package to reach slicesDone
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SlicerBenchmark {
+	static final long PERIOD = 60000;
+
+	@Param({"5", "50"})
+	int levels;
+
+	Slicer slicer;
+	List<Slicer.Slice> slices;
+
+	@Setup
+	public void setup() throws IOException{
+		slicer = new Slicer();
+		slicer.setOutputWriter(new BufferedWriter(new Writer(){
+			public void write(char[] cbuf, int off, int len){}
+			public void flush(){}
+			public void close(){}
+		}));
+		slices = new ArrayList<Slicer.Slice>();
+		for(List<TimeAndSale> trades : Fixtures.tradesByContract()){
+			TimeAndSale first = trades.get(0);
+			Slicer.Slice slice = new Slicer.Slice(first.getEventSymbol(), first.getTime() / PERIOD * PERIOD, PERIOD);
+			Slicer.OrderBook book = new Slicer.OrderBook();
+			long index = 0;
+			for(int level = 0; level < levels; ++level){
+				book.put(index, order(first.getEventSymbol(), index++, Side.BUY, first.getBidPrice() - level * 0.05, 10 + level));
+				book.put(index, order(first.getEventSymbol(), index++, Side.SELL, first.getAskPrice() + level * 0.05, 10 + level));
+			}
+			slice.book = book;
+			slice.sales = new Slicer.SaleStats();
+			for(TimeAndSale trade : trades)
+				slice.sales.add(trade);
+			slices.add(slice);
+		}
+	}
+
+	private static Order order(String symbol, long index, Side side, double price, long size){
+		Order order = new Order(symbol);
+		order.setIndex(index);
+		order.setOrderSide(side);
+		order.setPrice(price);
+		order.setSize(size);
+		return order;
+	}
+
+	@Benchmark
+	public List<Slicer.Slice> slicesDone(){
+		slicer.slicesDone(slices);
+		return slices;
+	}
+}
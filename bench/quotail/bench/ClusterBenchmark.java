@@ -0,0 +1,81 @@
+package quotail.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import quotail.Cluster;
+import quotail.DXFeedUtils;
+
+import com.dxfeed.event.market.TimeAndSale;
+
+// building, classifying and serializing a cluster of legs trades of one contract. the legs are the fixture
+// trades of its busiest contract repeated with increasing sequences up to the size of the cluster, and every
+// legs-th trade is shuffled out of order to exercise the out of order insert
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClusterBenchmark {
+	@Param({"10", "100", "500"})
+	int legs;
+
+	TimeAndSale[] trades;
+	Cluster cluster;
+
+	@Setup
+	public void setup() throws IOException{
+		List<TimeAndSale> busiest = new ArrayList<TimeAndSale>();
+		for(List<TimeAndSale> contract : Fixtures.tradesByContract()){
+			if(contract.size() > busiest.size())
+				busiest = contract;
+		}
+		TimeAndSale first = busiest.get(0);
+		trades = new TimeAndSale[legs];
+		for(int i = 0; i < legs; ++i){
+			TimeAndSale t = DXFeedUtils.parseTrade(DXFeedUtils.serializeTrade(busiest.get(i % busiest.size())));
+			t.setTime(first.getTime());
+			t.setSequence(i);
+			trades[i] = t;
+		}
+		for(int i = 7; i < legs; i += 8){
+			TimeAndSale tmp = trades[i];
+			trades[i] = trades[i - 3];
+			trades[i - 3] = tmp;
+		}
+		cluster = build();
+		cluster.classifyCluster();
+	}
+
+	private Cluster build(){
+		Cluster cluster = new Cluster(trades[0]);
+		for(int i = 1; i < trades.length; ++i)
+			cluster.addTrade(trades[i]);
+		return cluster;
+	}
+
+	@Benchmark
+	public Cluster addTrade(){
+		return build();
+	}
+
+	@Benchmark
+	public Cluster classifyCluster(){
+		cluster.classifyCluster();
+		return cluster;
+	}
+
+	@Benchmark
+	public String toJSON(){
+		return cluster.toJSON();
+	}
+}
@@ -0,0 +1,70 @@
+package quotail.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import quotail.DXFeedUtils;
+import quotail.OptionSymbol;
+
+import com.dxfeed.event.market.TimeAndSale;
+
+// symbol and text trade handling, each invocation works on the next trade of the fixture
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DXFeedUtilsBenchmark {
+	String[] lines;
+	String[] dxfeedSymbols;
+	String[] normalizedSymbols;
+	TimeAndSale[] trades;
+	int next;
+
+	@Setup
+	public void setup() throws IOException{
+		List<String> fixture = Fixtures.lines();
+		List<TimeAndSale> fixtureTrades = Fixtures.trades();
+		lines = fixture.toArray(new String[fixture.size()]);
+		trades = fixtureTrades.toArray(new TimeAndSale[fixtureTrades.size()]);
+		dxfeedSymbols = new String[trades.length];
+		normalizedSymbols = new String[trades.length];
+		for(int i = 0; i < trades.length; ++i){
+			normalizedSymbols[i] = trades[i].getEventSymbol();
+			dxfeedSymbols[i] = OptionSymbol.of(normalizedSymbols[i]).dxfeed;
+		}
+	}
+
+	private int next(){
+		if(++next == lines.length)
+			next = 0;
+		return next;
+	}
+
+	@Benchmark
+	public String normalizeContract(){
+		return DXFeedUtils.normalizeContract(dxfeedSymbols[next()]);
+	}
+
+	@Benchmark
+	public String getTicker(){
+		return DXFeedUtils.getTicker(normalizedSymbols[next()]);
+	}
+
+	@Benchmark
+	public TimeAndSale parseTrade(){
+		return DXFeedUtils.parseTrade(lines[next()]);
+	}
+
+	@Benchmark
+	public String serializeTrade(){
+		return DXFeedUtils.serializeTrade(trades[next()]);
+	}
+}
@@ -0,0 +1,73 @@
+package quotail.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import quotail.DXFeedUtils;
+import quotail.TradeJournal;
+
+import com.dxfeed.event.market.TimeAndSale;
+
+// trades the benchmarks run on. by default the sample bundled as trades_fixture.tsv (tab separated, as written
+// by DXFeedUtils.serializeTrade), or a recording given with -Dquotail.bench.fixture=PATH, either a trade
+// journal or a tab separated file. at most quotail.bench.limit trades are loaded (default 100000)
+public class Fixtures {
+	public static final String FIXTURE_PROPERTY = "quotail.bench.fixture";
+	public static final String LIMIT_PROPERTY = "quotail.bench.limit";
+	static final String SAMPLE = "/trades_fixture.tsv";
+
+	private static List<String> lines;
+
+	// the fixture as serialized trade lines
+	public static synchronized List<String> lines() throws IOException{
+		if(lines != null)
+			return lines;
+		int limit = Integer.getInteger(LIMIT_PROPERTY, 100000);
+		List<String> loaded = new ArrayList<String>();
+		String path = System.getProperty(FIXTURE_PROPERTY);
+		if(path != null && TradeJournal.isJournal(path)){
+			TradeJournal.Reader reader = TradeJournal.openReader(path);
+			while(loaded.size() < limit && reader.next())
+				loaded.add(DXFeedUtils.serializeTrade(reader.toTrade()));
+			reader.close();
+		}
+		else{
+			Reader in = path != null ? new FileReader(path)
+					: new InputStreamReader(Fixtures.class.getResourceAsStream(SAMPLE), StandardCharsets.US_ASCII);
+			BufferedReader reader = new BufferedReader(in);
+			String line;
+			while(loaded.size() < limit && (line = reader.readLine()) != null){
+				if(!line.isEmpty() && !line.startsWith("SYMBOL"))
+					loaded.add(line);
+			}
+			reader.close();
+		}
+		return lines = loaded;
+	}
+
+	// fresh copies of the fixture trades, benchmarks that modify trades get their own
+	public static List<TimeAndSale> trades() throws IOException{
+		List<TimeAndSale> trades = new ArrayList<TimeAndSale>();
+		for(String line : lines())
+			trades.add(DXFeedUtils.parseTrade(line));
+		return trades;
+	}
+
+	// the fixture trades grouped by contract, in fixture order
+	public static List<List<TimeAndSale>> tradesByContract() throws IOException{
+		java.util.Map<String, List<TimeAndSale>> byContract = new java.util.LinkedHashMap<String, List<TimeAndSale>>();
+		for(TimeAndSale t : trades()){
+			List<TimeAndSale> contractTrades = byContract.get(t.getEventSymbol());
+			if(contractTrades == null)
+				byContract.put(t.getEventSymbol(), contractTrades = new ArrayList<TimeAndSale>());
+			contractTrades.add(t);
+		}
+		return new ArrayList<List<TimeAndSale>>(byContract.values());
+	}
+}
@@ -0,0 +1,49 @@
+package quotail.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import quotail.Bin;
+import quotail.Cluster;
+import quotail.SpreadTracker;
+
+import com.dxfeed.event.market.TimeAndSale;
+
+// binning every fixture trade as a spread leg cluster into a fresh tracker, in fixture order.
+// the score is the time to bin the whole fixture
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpreadTrackerBenchmark {
+	Cluster[] clusters;
+
+	@Setup
+	public void setup() throws IOException{
+		List<Cluster> legs = new ArrayList<Cluster>();
+		for(TimeAndSale t : Fixtures.trades()){
+			t.setSpreadLeg(true);
+			legs.add(new Cluster(t));
+		}
+		clusters = legs.toArray(new Cluster[legs.size()]);
+	}
+
+	@Benchmark
+	public SpreadTracker addCluster(){
+		SpreadTracker tracker = new SpreadTracker();
+		for(Cluster cluster : clusters){
+			Bin bin = tracker.addCluster(cluster);
+			cluster.bin = bin;
+		}
+		return tracker;
+	}
+}
@@ -0,0 +1,53 @@
+package quotail.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import quotail.TradeSerializer;
+
+import com.dxfeed.event.market.TimeAndSale;
+
+// the kafka trade codec, each invocation encodes or decodes the next trade of the fixture
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TradeSerializerBenchmark {
+	final TradeSerializer serializer = new TradeSerializer();
+	TimeAndSale[] trades;
+	byte[][] encoded;
+	int next;
+
+	@Setup
+	public void setup() throws IOException{
+		List<TimeAndSale> fixture = Fixtures.trades();
+		trades = fixture.toArray(new TimeAndSale[fixture.size()]);
+		encoded = new byte[trades.length][];
+		for(int i = 0; i < trades.length; ++i)
+			encoded[i] = serializer.toBytes(trades[i]);
+	}
+
+	private int next(){
+		if(++next == trades.length)
+			next = 0;
+		return next;
+	}
+
+	@Benchmark
+	public byte[] toBytes(){
+		return serializer.toBytes(trades[next()]);
+	}
+
+	@Benchmark
+	public TimeAndSale fromBytes(){
+		return serializer.fromBytes(encoded[next()]);
+	}
+}
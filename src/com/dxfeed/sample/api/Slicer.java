@@ -29,11 +29,305 @@ import com.dxfeed.schedule.Session;
  */
 public class Slicer implements PropertyChangeListener {
 
-	public static final int PERIODS_PER_BATCH = 100;
-	public static final int MIN_BATCH_MILLIS = 120000;
+	public static final int LATE_PERIODS = 5;
+	public static final int MIN_LATE_MILLIS = 120000;
+	public static final int MERGE_BUFFER_SIZE = 64;
 
 	/**
-	 * Individual slice with book snapshot and all sales occurred within the slice.
+	 * Levels of one side of the book in primitive arrays kept sorted best first, bids by descending and
+	 * asks by ascending price. Levels at the same price are ordered by order index.
+	 */
+	public static class BookSide {
+		private final boolean bids;
+		private double[] prices = new double[8];
+		private long[] sizes = new long[8];
+		private long[] indexes = new long[8];
+		private int count;
+
+		BookSide(boolean bids) {
+			this.bids = bids;
+		}
+
+		BookSide(BookSide other) {
+			this.bids = other.bids;
+			this.prices = other.prices.clone();
+			this.sizes = other.sizes.clone();
+			this.indexes = other.indexes.clone();
+			this.count = other.count;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		public double getPrice(int level) {
+			return prices[level];
+		}
+
+		public long getSize(int level) {
+			return sizes[level];
+		}
+
+		void add(double price, long size, long index) {
+			int pos = -find(price, index) - 1;
+			if (pos < 0)
+				return; // already there
+			if (count == prices.length) {
+				prices = Arrays.copyOf(prices, count * 2);
+				sizes = Arrays.copyOf(sizes, count * 2);
+				indexes = Arrays.copyOf(indexes, count * 2);
+			}
+			System.arraycopy(prices, pos, prices, pos + 1, count - pos);
+			System.arraycopy(sizes, pos, sizes, pos + 1, count - pos);
+			System.arraycopy(indexes, pos, indexes, pos + 1, count - pos);
+			prices[pos] = price;
+			sizes[pos] = size;
+			indexes[pos] = index;
+			count++;
+		}
+
+		void remove(double price, long index) {
+			int pos = find(price, index);
+			if (pos < 0)
+				return;
+			System.arraycopy(prices, pos + 1, prices, pos, count - pos - 1);
+			System.arraycopy(sizes, pos + 1, sizes, pos, count - pos - 1);
+			System.arraycopy(indexes, pos + 1, indexes, pos, count - pos - 1);
+			count--;
+		}
+
+		/**
+		 * Returns true if two levels of this side have the same price.
+		 */
+		boolean hasDuplicatePrices() {
+			for (int i = 1; i < count; i++) {
+				if (prices[i] == prices[i - 1])
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Computes the average price to fill each of the given sizes from the best level on in a single walk
+		 * over the side, 0 when the side is empty.
+		 */
+		void averagePrices(long[] fillSizes, double[] result) {
+			long[] filled = new long[fillSizes.length];
+			Arrays.fill(result, 0);
+			for (int i = 0; i < count; i++) {
+				boolean more = false;
+				for (int j = 0; j < fillSizes.length; j++) {
+					if (filled[j] >= fillSizes[j])
+						continue;
+					long size = Math.min(sizes[i], fillSizes[j] - filled[j]);
+					filled[j] += size;
+					result[j] += prices[i] * size;
+					more |= filled[j] < fillSizes[j];
+				}
+				if (!more)
+					break;
+			}
+			for (int j = 0; j < fillSizes.length; j++) {
+				if (filled[j] > 0)
+					result[j] /= filled[j];
+			}
+		}
+
+		// position of the level or -(insertion point) - 1
+		private int find(double price, long index) {
+			int lo = 0;
+			int hi = count - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int cmp = bids ? Double.compare(price, prices[mid]) : Double.compare(prices[mid], price);
+				if (cmp == 0)
+					cmp = Long.compare(indexes[mid], index);
+				if (cmp < 0)
+					lo = mid + 1;
+				else if (cmp > 0)
+					hi = mid - 1;
+				else
+					return mid;
+			}
+			return -(lo + 1);
+		}
+	}
+
+	/**
+	 * Order book by order index with both sides also kept as price sorted levels, so the best levels and
+	 * depth weighted prices are read off without sorting.
+	 */
+	public static class OrderBook {
+		private final Map<Long, Order> orders;
+		private final BookSide bids;
+		private final BookSide asks;
+
+		public OrderBook() {
+			orders = new HashMap<Long, Order>();
+			bids = new BookSide(true);
+			asks = new BookSide(false);
+		}
+
+		public OrderBook(OrderBook other) {
+			orders = new HashMap<Long, Order>(other.orders);
+			bids = new BookSide(other.bids);
+			asks = new BookSide(other.asks);
+		}
+
+		public Map<Long, Order> getOrders() {
+			return Collections.unmodifiableMap(orders);
+		}
+
+		public BookSide getBids() {
+			return bids;
+		}
+
+		public BookSide getAsks() {
+			return asks;
+		}
+
+		public void put(long index, Order order) {
+			Order old = orders.put(index, order);
+			if (old != null)
+				removeLevel(old, index);
+			BookSide side = side(order);
+			if (side != null)
+				side.add(order.getPrice(), order.getSize(), index);
+		}
+
+		public void remove(long index) {
+			Order old = orders.remove(index);
+			if (old != null)
+				removeLevel(old, index);
+		}
+
+		private void removeLevel(Order order, long index) {
+			BookSide side = side(order);
+			if (side != null)
+				side.remove(order.getPrice(), index);
+		}
+
+		private BookSide side(Order order) {
+			return order.getOrderSide() == Side.BUY ? bids : order.getOrderSide() == Side.SELL ? asks : null;
+		}
+	}
+
+	/**
+	 * Receives the sales of a slice one by one as they are processed. Sales are not kept, an aggregator
+	 * only updates what it needs from each of them.
+	 */
+	public interface SaleAggregator {
+		void add(TimeAndSale sale);
+
+		/**
+		 * Returns volume weighted average price of the sales, 0 if there were none.
+		 */
+		double getVwap();
+
+		/**
+		 * Returns total size of the sales.
+		 */
+		long getVolume();
+	}
+
+	/**
+	 * Default {@link SaleAggregator} with the usual statistics of the sales of a slice. Open and close are the
+	 * first and the last sale in the order they were processed.
+	 */
+	public static class SaleStats implements SaleAggregator {
+		private int count;
+		private long volume;
+		private double notional;
+		private double open;
+		private double high;
+		private double low;
+		private double close;
+		private long buyVolume;
+		private long sellVolume;
+		private long maxPrintSize;
+		private double maxPrintPrice;
+
+		public void add(TimeAndSale sale) {
+			double price = sale.getPrice();
+			long size = sale.getSize();
+			if (count++ == 0) {
+				open = high = low = price;
+			} else {
+				high = Math.max(high, price);
+				low = Math.min(low, price);
+			}
+			close = price;
+			volume += size;
+			notional += price * size;
+			if (sale.getAggressorSide() == Side.BUY)
+				buyVolume += size;
+			else if (sale.getAggressorSide() == Side.SELL)
+				sellVolume += size;
+			if (size > maxPrintSize) {
+				maxPrintSize = size;
+				maxPrintPrice = price;
+			}
+		}
+
+		public double getVwap() {
+			return volume > 0 ? notional / volume : 0;
+		}
+
+		public long getVolume() {
+			return volume;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public double getOpen() {
+			return open;
+		}
+
+		public double getHigh() {
+			return high;
+		}
+
+		public double getLow() {
+			return low;
+		}
+
+		public double getClose() {
+			return close;
+		}
+
+		/**
+		 * Returns total size of the sales with buy aggressor side.
+		 */
+		public long getBuyVolume() {
+			return buyVolume;
+		}
+
+		/**
+		 * Returns total size of the sales with sell aggressor side.
+		 */
+		public long getSellVolume() {
+			return sellVolume;
+		}
+
+		/**
+		 * Returns size of the largest sale, the first one of them if there are several.
+		 */
+		public long getMaxPrintSize() {
+			return maxPrintSize;
+		}
+
+		public double getMaxPrintPrice() {
+			return maxPrintPrice;
+		}
+	}
+
+	/**
+	 * Individual slice with book snapshot and the aggregated sales occurred within the slice.
+	 * Slices only store the book levels that changed within them. The full book is materialized when it is
+	 * needed, which normally happens once the slice is done: the book then rolls forward into the next slice
+	 * without being copied, so each symbol keeps a single live book no matter how many slices are active.
 	 */
 	public static class Slice {
 		public final String symbol;   // symbol of this slice
@@ -41,10 +335,11 @@ public class Slicer implements PropertyChangeListener {
 		public final long endTime;    // time when slice ends, endTime = startTime + period
 		public boolean isValid;       // book is crossed or something wrong with the slice
 
-		public Slice prev;            // will set to null when book is initialized from prev
-		public Map<Long, Order> book; // book with all levels at the end of the slice
+		public Slice prev;            // slice whose book this one continues, null once the book is materialized or taken over
+		public OrderBook book;        // book with all levels at the end of the slice, null until materialized
+		Map<Long, Order> changes;     // levels changed within this slice while the book is not materialized, null value for a removed level
 
-		public final List<TimeAndSale> sales = new ArrayList<TimeAndSale>();  // sales occurred between startTime and endTime
+		public SaleAggregator sales;  // sales occurred between startTime and endTime, null if none occurred
 
 		public long lastBookUpdate;  // max time of book update or 0 if none occurred
 		public long lastSaleUpdate;  // max time of sale update or 0 if none occurred
@@ -66,27 +361,73 @@ public class Slicer implements PropertyChangeListener {
 			return symbol + "{" + TimeFormat.DEFAULT.format(startTime) + " to " + TimeFormat.DEFAULT.format(endTime) + ", isValid = " + isValid + "}";
 		}
 
-		public Map<Long, Order> getBook() {
+		/**
+		 * Returns the book at the end of the slice. For a done slice it is only valid until
+		 * {@link Slicer#slicesDone(List)} returns, afterwards the next slice of the symbol takes it over.
+		 */
+		public OrderBook getBook() {
 			if (book == null)
-				copyPrevBook();
+				materializeBook();
 			return book;
 		}
 
-		private void copyPrevBook() {
-			Slice head = this;
-			while (head.prev != null)
-				head = head.prev;
-			// get book to copy
-			Map<Long, Order> book = head.book;
-			if (book == null)
-				head.book = book = new HashMap<Long, Order>(); // no book -- create empty
-			// now copy book forward up to slice
-			head = this;
-			while (head.prev != null) {
-				head.book = new HashMap<Long, Order>(book);
-				Slice prev = head.prev;
-				head.prev = null; // signal that book copy is done
-				head = prev;
+		/**
+		 * Sets a level of the book at the end of the slice, {@code null} order removes the level.
+		 */
+		void updateBook(long index, Order order) {
+			if (book != null) {
+				if (order == null)
+					book.remove(index);
+				else
+					book.put(index, order);
+				return;
+			}
+			if (changes == null)
+				changes = new HashMap<Long, Order>();
+			changes.put(index, order);
+		}
+
+		/**
+		 * Continues the book of the given done slice, taking its book over instead of copying it.
+		 */
+		void takeOverBook(Slice done) {
+			if (prev != done || book != null)
+				return;
+			OrderBook book = done.getBook();
+			done.book = null;
+			applyChanges(book, changes);
+			this.book = book;
+			changes = null;
+			prev = null;
+		}
+
+		// copy of the nearest materialized book with the changes of every slice since applied in order
+		private void materializeBook() {
+			ArrayList<Slice> chain = new ArrayList<Slice>();
+			OrderBook base = null;
+			for (Slice head = this; head != null; head = head.prev) {
+				if (head.book != null) {
+					base = head.book;
+					break;
+				}
+				chain.add(head);
+			}
+			OrderBook book = base == null ? new OrderBook() : new OrderBook(base);
+			for (int i = chain.size(); --i >= 0;)
+				applyChanges(book, chain.get(i).changes);
+			this.book = book;
+			changes = null;
+			prev = null;
+		}
+
+		private static void applyChanges(OrderBook book, Map<Long, Order> changes) {
+			if (changes == null)
+				return;
+			for (Map.Entry<Long, Order> change : changes.entrySet()) {
+				if (change.getValue() == null)
+					book.remove(change.getKey());
+				else
+					book.put(change.getKey(), change.getValue());
 			}
 		}
 	}
@@ -95,7 +436,7 @@ public class Slicer implements PropertyChangeListener {
 		new Slicer().start(args);
 	}
 
-	// need executor with 3 threads (state changes for two endpoins, process sales, process orders)
+	// need executor with 3 threads (state changes for two endpoins, receive sales, receive orders)
 	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(4);
 
 	// Parameters derived from command line arguments. Effectively final.
@@ -105,7 +446,6 @@ public class Slicer implements PropertyChangeListener {
 	protected long startTime;               // first slice start time (0 in real-time mode)
 	protected long endTime;                 // last slice start time (Long.MAX_VALUE in real-time mode)
 	protected long oldThreshold;            // threshold for old slices to finish them even if some events lag
-	protected long waitThreshold;           // threshold for old slices to blocking wait for them (Long.MAX_VALUE is real-time mode)
 	protected long sessionStartTime;        // ignore everything before this time
 
 	// Slicer state updated during event processing.
@@ -113,16 +453,22 @@ public class Slicer implements PropertyChangeListener {
 	private DXEndpoint orderEndpoint;
 	private DXEndpoint saleEndpoint;
 
-	// both sale & order processing must terminate
-	private final CountDownLatch completionLatch = new CountDownLatch(2);
+	// orders and sales of tape and history modes are processed in time order, see TimeMerge
+	private TimeMerge merge;
+
+	// merged sale & order processing must terminate
+	private final CountDownLatch completionLatch = new CountDownLatch(1);
 
-	private final Map<String, List<Slice>> allSlices = new HashMap<String, List<Slice>>();
+	// slicing state is sharded by symbol, see Shard
+	private Shard[] shards;
+	private final Emitter emitter = new Emitter();
+	private long watermarkCount;
 	private long oldestActiveSliceTime;
 	private long lastOrderTime;
 	private long lastSaleTime;
-	private long doneSlices;
 	private int orderCount = 0;
 	private int saleCount = 0;
+	private int threads = Runtime.getRuntime().availableProcessors();
 
 	private boolean isRTOrTapeMode;
 	private boolean zeroFillFromStartTimeToFirstTick = false;
@@ -173,12 +519,19 @@ public class Slicer implements PropertyChangeListener {
 		period = Integer.parseInt(properties.getProperty("period", "")) * 1000L;
 		initOutputFile(properties.getProperty("outputFile", "slicer.cfg"));
 		useCompositeOrderOrQuote = Boolean.parseBoolean(properties.getProperty("useCompositeOrderOrQuote", "false"));
+		if (properties.getProperty("threads", "").length() > 0) {
+			threads = Integer.parseInt(properties.getProperty("threads"));
+			if (threads < 1) {
+				System.out.println("Invalid value for threads: must be at least 1");
+				System.exit(-1);
+			}
+		}
+		startShards();
 
 		if (mode.equals("realtime")) {
 			startTime = 0;
 			endTime = Long.MAX_VALUE;
-			oldThreshold = Math.max(MIN_BATCH_MILLIS, period * 5);
-			waitThreshold = Long.MAX_VALUE;
+			oldThreshold = Math.max(MIN_LATE_MILLIS, period * LATE_PERIODS);
 			isRTOrTapeMode = true;
 			sessionStartTime = getSessionStartTime(System.currentTimeMillis());
 			DXEndpoint endpoint = DXEndpoint.create(DXEndpoint.Role.FEED).executor(EXECUTOR);
@@ -188,8 +541,7 @@ public class Slicer implements PropertyChangeListener {
 		} else if (mode.equals("tape")) {
 			startTime = TimeFormat.DEFAULT.parse(properties.getProperty("startTime", "")).getTime() / period * period;
 			endTime = TimeFormat.DEFAULT.parse(properties.getProperty("endTime", "")).getTime() / period * period;
-			oldThreshold = Math.max(MIN_BATCH_MILLIS, period * PERIODS_PER_BATCH);
-			waitThreshold = oldThreshold / 2;
+			oldThreshold = Math.max(MIN_LATE_MILLIS, period * LATE_PERIODS);
 			isRTOrTapeMode = true;
 			zeroFillFromStartTimeToFirstTick = Boolean.valueOf(properties.getProperty("zeroFillFromStartTimeToFirstTick", "false"));
 			String tapeAddress = properties.getProperty("tapeAddress", "");
@@ -198,8 +550,7 @@ public class Slicer implements PropertyChangeListener {
 		} else if (mode.equals("history")) {
 			startTime = TimeFormat.DEFAULT.parse(properties.getProperty("startTime", "")).getTime() / period * period;
 			endTime = TimeFormat.DEFAULT.parse(properties.getProperty("endTime", "")).getTime() / period * period;
-			oldThreshold = Math.max(MIN_BATCH_MILLIS, period * PERIODS_PER_BATCH);
-			waitThreshold = oldThreshold / 2;
+			oldThreshold = Math.max(MIN_LATE_MILLIS, period * LATE_PERIODS);
 			isRTOrTapeMode = false;
 			zeroFillFromStartTimeToFirstTick = Boolean.valueOf(properties.getProperty("zeroFillFromStartTimeToFirstTick", "false"));
 			String orderAddress = properties.getProperty("historyOrderAddress", "");
@@ -252,6 +603,7 @@ public class Slicer implements PropertyChangeListener {
 		System.out.println("  [outputFile]                      - output CSV file name; defaults to slicer.csv");
 		System.out.println("  [schedule]                        - optional schedule to mark slices invalid during trading session pause");
 		System.out.println("  [useCompositeOrderOrQuote]        - use composite orders or quote events instead of aggregate scope orders");
+		System.out.println("  [threads]                         - number of threads slicing symbols in parallel; defaults to the number of processors");
 	}
 
 	private void initOutputFile(String fileName) throws IOException {
@@ -262,6 +614,20 @@ public class Slicer implements PropertyChangeListener {
 			outputWriteLn("SYMBOL, TIME, BEST_BID, BEST_BID_SIZE, BEST_OFFER, BEST_OFFER_SIZE, VWAP, CUMULATIVE_VOLUME, IS_VALID_SLICE");
 	}
 
+	/**
+	 * Creates the aggregator for the sales of a slice, invoked on the first sale of the slice.
+	 * Override it to collect other statistics in {@link Slice#sales}. It is invoked concurrently from
+	 * all slicing threads.
+	 */
+	protected SaleAggregator createSaleAggregator(String symbol) {
+		return new SaleStats();
+	}
+
+	// used by the benchmarks to run slicesDone without an output file
+	void setOutputWriter(BufferedWriter outputWriter) {
+		this.outputWriter = outputWriter;
+	}
+
 	private void outputWriteLn(String s) {
 		try {
 			outputWriter.write(s);
@@ -290,8 +656,12 @@ public class Slicer implements PropertyChangeListener {
 			symbols = new ArrayList<String>(Arrays.asList(arg.split(",")));
 	}
 
-	private void finish() {
-		checkOld();
+	private void finish() throws InterruptedException {
+		synchronized (this) {
+			checkOld();
+			flushBatches();
+		}
+		emitter.awaitEmitted(watermarkCount);
 		report("Finished");
 	}
 
@@ -300,6 +670,10 @@ public class Slicer implements PropertyChangeListener {
 		saleEndpoint = DXEndpoint.create(DXEndpoint.Role.STREAM_FEED).executor(EXECUTOR);
 		orderEndpoint.addStateChangeListener(this);
 		saleEndpoint.addStateChangeListener(this);
+		merge = new TimeMerge();
+		Thread mergeThread = new Thread(merge, "slicer-merge");
+		mergeThread.setDaemon(true);
+		mergeThread.start();
 		startProcessing(orderEndpoint.getFeed(), saleEndpoint.getFeed());
 		sessionStartTime = getSessionStartTime(startTime);
 		String props =
@@ -330,7 +704,7 @@ public class Slicer implements PropertyChangeListener {
 	}
 
 	private void startProcessing(DXFeed orderFeed, DXFeed saleFeed) {
-		System.out.println("Starting: " + symbols.size() + " symbols, " + allSlices.size() + " sliced, " + doneSlices + " slices" +
+		System.out.println("Starting: " + symbols.size() + " symbols, " + threads + " slicing threads" +
 			", startTime " + TimeFormat.DEFAULT.format(startTime) +
 			", endTime " + TimeFormat.DEFAULT.format(endTime));
 		startProcessing(orderFeed, Order.class);
@@ -339,26 +713,26 @@ public class Slicer implements PropertyChangeListener {
 
 	private void report(String what) {
 
+		long symbolsSliced = 0;
 		long avgSize = 0;
 		long maxSize = 0;
 		long firstSliceDate = 0;
 		long lastSliceDate = 0;
 
-		for (String symbol : symbols) {
-			List<Slice> sl = allSlices.get(symbol);
-			if (sl != null) {
-				avgSize += sl.size();
-				if (sl.size() > maxSize) {
-					maxSize = sl.size();
-					firstSliceDate = sl.get(0).startTime;
-					lastSliceDate = sl.get(sl.size() - 1).startTime;
-				}
+		// statistics as of the last watermark each shard processed
+		for (Shard shard : shards) {
+			symbolsSliced += shard.symbolCount;
+			avgSize += shard.sliceCount;
+			if (shard.maxSlices > maxSize) {
+				maxSize = shard.maxSlices;
+				firstSliceDate = shard.firstSliceDate;
+				lastSliceDate = shard.lastSliceDate;
 			}
 		}
 		avgSize /= symbols.size();
 
 		System.out.println(fmt(System.currentTimeMillis()) + ": " + what + ": " + symbols.size() +
-			" symbols, " + allSlices.size() + " symbols sliced, " + doneSlices + " done slices" +
+			" symbols, " + symbolsSliced + " symbols sliced, " + emitter.doneSlices + " done slices" +
 			", " + avgSize + " avg. slices per symbol, " + maxSize + " max slices per symbol (" +
 			fmt(firstSliceDate) + " - " + fmt(lastSliceDate) + ")" +
 			", lastOrderTime " + fmt(lastOrderTime) +
@@ -374,7 +748,10 @@ public class Slicer implements PropertyChangeListener {
 		subscription.addEventListener(new DXFeedEventListener<Object>() {
 			public void eventsReceived(List<Object> events) {
 				try {
-					process(eventType, events);
+					if (merge != null)
+						merge.put(eventType, events);
+					else
+						process(eventType, events);
 				} catch (InterruptedException e) {
 					Thread.currentThread().interrupt();
 				}
@@ -395,16 +772,9 @@ public class Slicer implements PropertyChangeListener {
 	private void checkCompletion(PropertyChangeEvent evt, DXEndpoint endpoint, boolean order) throws InterruptedException {
 		if (evt.getSource() == endpoint && endpoint.getState() == DXEndpoint.State.NOT_CONNECTED) {
 			endpoint.closeAndAwaitTermination();
-			System.out.println("Completed processing " + (order ? "orders" : "sales"));
-			// we are now sure that that all order or sales were processed
-			synchronized (this) {
-				if (order)
-					lastOrderTime = Long.MAX_VALUE;
-				else
-					lastSaleTime = Long.MAX_VALUE;
-				notifyAll();
-			}
-			completionLatch.countDown();
+			System.out.println("Completed receiving " + (order ? "orders" : "sales"));
+			// we are now sure that that all order or sales were passed to the merge
+			merge.finish(order ? Order.class : TimeAndSale.class);
 		}
 	}
 
@@ -416,6 +786,7 @@ public class Slicer implements PropertyChangeListener {
 			processSales((List<TimeAndSale>)events);
 		else
 			throw new IllegalArgumentException();
+		flushBatches();
 	}
 
 	private void processOrders(List<Order> orders) throws InterruptedException {
@@ -432,22 +803,10 @@ public class Slicer implements PropertyChangeListener {
 			if (time < sessionStartTime) continue;
 
 			orderCount++;
-			Slice slice = prepareSlice(order.getEventSymbol(), time);
-			if (slice == null)
+			if (!initOldestActiveSliceTime(time))
 				continue;
-			// update book
-			if (useCompositeOrderOrQuote) {
-				slice.getBook().put((long)order.getOrderSide().getCode(), order);
-			} else {
-				if (order.getSize() == 0)
-					slice.getBook().remove(order.getIndex());
-				else
-					slice.getBook().put(order.getIndex(), order);
-			}
-
-			slice.lastBookUpdate = time;
+			route(order.getEventSymbol(), order, time, time);
 			lastOrderTime = time;
-			waitOther(1);
 			checkOld();
 		}
 	}
@@ -469,213 +828,459 @@ public class Slicer implements PropertyChangeListener {
 			}
 
 			saleCount++;
-			Slice slice = prepareSlice(sale.getEventSymbol(), time);
-			if (slice == null)
+			if (!initOldestActiveSliceTime(time))
 				continue;
-			slice.sales.add(sale);
-
 			// last sale time should not go backwards
-			time = Math.max(time, lastSaleTime);
-			slice.lastSaleUpdate = time;
-			lastSaleTime = time;
-			waitOther(-1);
+			long updateTime = Math.max(time, lastSaleTime);
+			route(sale.getEventSymbol(), sale, time, updateTime);
+			lastSaleTime = updateTime;
 			checkOld();
 		}
 	}
 
-	private Slice prepareSlice(String symbol, long time) {
+	// false while there is nothing to slice from yet, i.e. in real-time mode before the first event with a time
+	private boolean initOldestActiveSliceTime(long time) {
 		if (startTime == 0 && time != 0)
 			startTime = (time - oldThreshold) / period * period;
 		if (oldestActiveSliceTime == 0 && startTime != 0)
 			oldestActiveSliceTime = startTime - oldThreshold;
-		// init per symbol slice list
-		List<Slice> sl = allSlices.get(symbol);
-		if (sl == null) {
-			if (oldestActiveSliceTime == 0)
-				return null;
-			allSlices.put(symbol, sl = new ArrayList<Slice>());
-			if (zeroFillFromStartTimeToFirstTick)
-				sl.add(new Slice(symbol, startTime / period * period, period));
-			else
-				sl.add(new Slice(symbol, Math.max(oldestActiveSliceTime, time) / period * period, period));
-		}
-
-		// add missing slices
-		Slice lastSlice = sl.get(sl.size() - 1);
-		while (lastSlice.endTime <= time)
-			sl.add(lastSlice = new Slice(lastSlice));
-
-		// find proper slice from the history
-		for (int i = sl.size(); --i >= 0;) {
-			Slice s = sl.get(i);
-			if (s.startTime <= time && time < s.endTime)
-				return s;
-		}
+		return oldestActiveSliceTime != 0;
+	}
 
-		// add missing slices to the beginning of slice list
-		while (time < sl.get(0).startTime) {
-			Slice next = sl.get(0);
-			final Slice slice = new Slice(symbol, next.startTime - period, period);
-			next.prev = slice;
-			sl.add(0, slice);
+	/**
+	 * Starts one slicing thread per shard.
+	 */
+	void startShards() {
+		shards = new Shard[threads];
+		for (int i = 0; i < threads; i++) {
+			shards[i] = new Shard();
+			Thread thread = new Thread(shards[i], "slicer-shard-" + i);
+			thread.setDaemon(true);
+			thread.start();
 		}
+	}
 
-		return sl.get(0);
+	// hands the event to the shard of its symbol, events are passed on in batches when processing returns
+	private void route(String symbol, Object event, long time, long updateTime) {
+		Shard shard = shards[(symbol.hashCode() & Integer.MAX_VALUE) % shards.length];
+		if (shard.batch == null)
+			shard.batch = new Batch(oldestActiveSliceTime);
+		shard.batch.add(symbol, event, time, updateTime);
 	}
 
-	private void waitOther(int direction) throws InterruptedException {
-		if (waitThreshold == Long.MAX_VALUE)
-			return;
-		while ((lastOrderTime - lastSaleTime) * direction > waitThreshold)
-			wait(10000);
-		if ((lastSaleTime - lastOrderTime) * direction > waitThreshold)
-			notifyAll();
+	private void flushBatches() throws InterruptedException {
+		for (Shard shard : shards) {
+			if (shard.batch != null) {
+				shard.queue.put(shard.batch);
+				shard.batch = null;
+			}
+		}
 	}
 
-	private void checkOld() {
-		long time = waitThreshold == Long.MAX_VALUE ? Math.max(lastOrderTime, lastSaleTime) : Math.min(lastOrderTime, lastSaleTime);
+	private void checkOld() throws InterruptedException {
+		// events come in time order, so no slice older than the last of them by more than oldThreshold changes
+		long time = Math.max(lastOrderTime, lastSaleTime);
 		if (time < oldestActiveSliceTime + oldThreshold)
 			return;
 		// note, that we never slice past endTime
 		oldestActiveSliceTime = Math.min(endTime, (time - oldThreshold + period) / period * period);
-		String[] symbols = allSlices.keySet().toArray(new String[allSlices.size()]);
-		Arrays.sort(symbols);
-		while (true) {
-			boolean hasMore = false;
-			List<Slice> done = new ArrayList<Slice>(allSlices.size());
-			for (String symbol : symbols) {
-				List<Slice> sl = allSlices.get(symbol);
-				if (sl.get(0).startTime < oldestActiveSliceTime) {
-					Slice s = sl.remove(0);
-					if (startTime <= s.startTime && s.startTime <= endTime)
-						done.add(s);
-					if (sl.isEmpty())
-						sl.add(new Slice(s));
-					if (sl.get(0).startTime < oldestActiveSliceTime)
-						hasMore = true;
+		// every shard sees the events before the watermark first
+		flushBatches();
+		Watermark watermark = new Watermark(++watermarkCount, oldestActiveSliceTime);
+		for (Shard shard : shards)
+			shard.queue.put(watermark);
+	}
+
+	/**
+	 * Merges the order and the sale streams of tape and history modes into a single stream in time order. Each
+	 * stream is received into a bounded buffer, a full buffer blocks its endpoint until the merge catches up, and
+	 * the merge thread passes the events to {@link #process(Class, List)} in runs, always taking the next event
+	 * from the stream with the earliest time, orders first on ties. Slicing sees the same sequence of events
+	 * on every run, no matter how far apart the two files are read.
+	 */
+	private class TimeMerge implements Runnable {
+		private final MergeSource[] sources = { new MergeSource(Order.class), new MergeSource(TimeAndSale.class) };
+
+		void put(Class<?> eventType, List<?> events) throws InterruptedException {
+			source(eventType).buffer.put(new ArrayList<Object>(events));
+		}
+
+		void finish(Class<?> eventType) throws InterruptedException {
+			source(eventType).buffer.put(MergeSource.END);
+		}
+
+		private MergeSource source(Class<?> eventType) {
+			for (MergeSource source : sources) {
+				if (source.eventType == eventType)
+					return source;
+			}
+			throw new IllegalArgumentException();
+		}
+
+		public void run() {
+			try {
+				List<Object> run = new ArrayList<Object>();
+				MergeSource runSource = null;
+				while (true) {
+					MergeSource next = null;
+					for (MergeSource source : sources) {
+						if (source.fill() && (next == null || source.time < next.time))
+							next = source;
+					}
+					if (next != runSource || run.size() >= MERGE_BUFFER_SIZE * 16 || next == null) {
+						if (!run.isEmpty()) {
+							try {
+								process(runSource.eventType, run);
+							} catch (RuntimeException e) {
+								// only this run of events is lost, like a failing listener call before the merge
+								e.printStackTrace();
+							}
+						}
+						run.clear();
+						runSource = next;
+					}
+					if (next == null)
+						break;
+					run.add(next.poll());
 				}
+				// we are now sure that that all orders and sales were processed
+				synchronized (Slicer.this) {
+					lastOrderTime = Long.MAX_VALUE;
+					lastSaleTime = Long.MAX_VALUE;
+				}
+				completionLatch.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
-			slicesDone(done);
-			doneSlices += done.size();
-			if (!hasMore)
-				break;
 		}
 	}
 
 	/**
-	 * Invoked whenever some slices are done - i.e. have finished processing.
-	 * Add your processing code here.
+	 * Events of one stream waiting to be merged.
 	 */
-	protected void slicesDone(List<Slice> slices) {
-		for (Slice slice : slices) {
-			// Initialize output string
-			StringBuilder output = new StringBuilder(slice.symbol + ", " + TimeFormat.DEFAULT.format(slice.startTime) + ", ");
+	private static class MergeSource {
+		static final List<Object> END = new ArrayList<Object>();
+
+		final Class<?> eventType;
+		final BlockingQueue<List<?>> buffer = new ArrayBlockingQueue<List<?>>(MERGE_BUFFER_SIZE);
+		private List<?> events = Collections.emptyList();
+		private int pos;
+		private boolean done;
+		long time; // time of the next event, never goes backwards like order and sale processing
+
+		MergeSource(Class<?> eventType) {
+			this.eventType = eventType;
+		}
 
-			// Check if within trading session
-			if (schedule != null) {
-				Session session = schedule.getSessionByTime(slice.startTime);
-				if (!session.isTrading())
-					slice.isValid = false;
+		// true when there is a next event, waits for the stream to deliver it
+		boolean fill() throws InterruptedException {
+			while (pos == events.size()) {
+				if (done)
+					return false;
+				events = buffer.take();
+				pos = 0;
+				done = events == END;
 			}
+			Object event = events.get(pos);
+			time = Math.max(time, event instanceof Order ? ((Order)event).getTime() : ((TimeAndSale)event).getTime());
+			return true;
+		}
 
-			// Construct sorted book out of slice.book:
- 			ArrayList<Order> sortedBook = new ArrayList<Order>(slice.getBook().values());
-			Collections.sort(sortedBook, new Comparator<Order>() {
-				public int compare(Order o1, Order o2) {
-					return Double.compare(o1.getPrice(), o2.getPrice());
-				}
-			});
+		Object poll() {
+			return events.get(pos++);
+		}
+	}
 
-			//boolean printBook = false;
+	/**
+	 * Events of one call to {@code process} bound for the same shard.
+	 */
+	private static class Batch {
+		final long oldestActiveSliceTime; // as of the events in the batch, watermarks always end a batch
+		String[] symbols = new String[16];
+		Object[] events = new Object[16];
+		long[] times = new long[16];
+		long[] updateTimes = new long[16];
+		int size;
+
+		Batch(long oldestActiveSliceTime) {
+			this.oldestActiveSliceTime = oldestActiveSliceTime;
+		}
 
-			// book size 0
-			StringBuilder bbo = new StringBuilder();
-			StringBuilder bookAvgPrices = new StringBuilder();
+		void add(String symbol, Object event, long time, long updateTime) {
+			if (size == events.length) {
+				symbols = Arrays.copyOf(symbols, size * 2);
+				events = Arrays.copyOf(events, size * 2);
+				times = Arrays.copyOf(times, size * 2);
+				updateTimes = Arrays.copyOf(updateTimes, size * 2);
+			}
+			symbols[size] = symbol;
+			events[size] = event;
+			times[size] = time;
+			updateTimes[size] = updateTime;
+			size++;
+		}
+	}
 
-			boolean oneSidedBook = true;
-			for (int i = 0; i < sortedBook.size() - 1; i++) {
-				Order o1 = sortedBook.get(i);
-				Order o2 = sortedBook.get(i + 1);
-				// Check book
-				if (o1.getPrice() >= o2.getPrice()) {
-					slice.isValid = false;
+	/**
+	 * Slices older than time are done, sent to every shard in the same position of the event stream.
+	 */
+	private static class Watermark {
+		final long seq;
+		final long time;
+
+		Watermark(long seq, long time) {
+			this.seq = seq;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Slices of the symbols that hash to it. Each shard owns its slices and only its own thread touches them,
+	 * so orders and sales of different symbols are applied in parallel. On a watermark every shard takes its
+	 * done slices off and hands them to the {@link Emitter}, which passes them on in the same order as a single
+	 * slicing thread would, and waits until they are emitted before rolling the books into the next slices.
+	 */
+	private class Shard implements Runnable {
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(256);
+		final Map<String, List<Slice>> allSlices = new HashMap<String, List<Slice>>();
+		Batch batch; // batch being filled, guarded by the Slicer
+
+		// statistics for progress reports, updated on every watermark
+		volatile int symbolCount;
+		volatile long sliceCount;
+		volatile int maxSlices;
+		volatile long firstSliceDate;
+		volatile long lastSliceDate;
+
+		public void run() {
+			try {
+				while (true) {
+					Object next = queue.take();
+					try {
+						if (next instanceof Batch)
+							process((Batch)next);
+						else
+							removeOld((Watermark)next);
+					} catch (RuntimeException e) {
+						// only the events of the batch or the slices of the watermark are lost, the emitter
+						// is released even when slicesDone fails, so slicing goes on
+						e.printStackTrace();
+					}
 				}
-				// check invalid bbo / book cross
-				if (o1.getOrderSide() == Side.SELL && o2.getOrderSide() == Side.BUY) {
-					slice.isValid = false;
-					//printBook = true;
-				} else
-				// this is bbo
-				if (o1.getOrderSide() == Side.BUY && o2.getOrderSide() == Side.SELL) {
-					bbo.append(o1.getPrice());
-					bbo.append(", ");
-					bbo.append(o1.getSize());
-					bbo.append(", ");
-					bbo.append(o2.getPrice());
-					bbo.append(", ");
-					bbo.append(o2.getSize());
-					bbo.append(", ");
-
-					oneSidedBook = false;
-
-					if (calcAvgBookPrices) {
-						for (int j = 0; j < 5; j++) {
-							bookAvgPrices.append(getAvgPriceForSize(avgBookSizes[j], Side.BUY, sortedBook, i));
-							bookAvgPrices.append(getAvgPriceForSize(avgBookSizes[j], Side.SELL, sortedBook, i));
-						}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void process(Batch batch) {
+			for (int i = 0; i < batch.size; i++) {
+				Slice slice = prepareSlice(batch.symbols[i], batch.times[i], batch.oldestActiveSliceTime);
+				if (slice == null)
+					continue;
+				Object event = batch.events[i];
+				if (event instanceof Order) {
+					Order order = (Order)event;
+					// update book
+					if (useCompositeOrderOrQuote) {
+						slice.updateBook((long)order.getOrderSide().getCode(), order);
+					} else {
+						if (order.getSize() == 0)
+							slice.updateBook(order.getIndex(), null);
+						else
+							slice.updateBook(order.getIndex(), order);
 					}
+					slice.lastBookUpdate = batch.updateTimes[i];
+				} else {
+					if (slice.sales == null)
+						slice.sales = createSaleAggregator(slice.symbol);
+					slice.sales.add((TimeAndSale)event);
+					slice.lastSaleUpdate = batch.updateTimes[i];
 				}
 			}
+		}
+
+		private Slice prepareSlice(String symbol, long time, long oldestActiveSliceTime) {
+			// init per symbol slice list
+			List<Slice> sl = allSlices.get(symbol);
+			if (sl == null) {
+				allSlices.put(symbol, sl = new ArrayList<Slice>());
+				if (zeroFillFromStartTimeToFirstTick)
+					sl.add(new Slice(symbol, startTime / period * period, period));
+				else
+					sl.add(new Slice(symbol, Math.max(oldestActiveSliceTime, time) / period * period, period));
+			}
 
-			if (oneSidedBook && sortedBook.size() > 0) {
-				Order o = sortedBook.get(0);
-				if (o.getOrderSide() == Side.BUY) {
-					bbo.append(o.getPrice());
-					bbo.append(", ");
-					bbo.append(o.getSize());
-					bbo.append(", 0, 0, ");
+			// add missing slices
+			Slice lastSlice = sl.get(sl.size() - 1);
+			while (lastSlice.endTime <= time)
+				sl.add(lastSlice = new Slice(lastSlice));
 
-					if (calcAvgBookPrices) {
-						for (int j = 0; j < 5; j++) {
-							bookAvgPrices.append("0, ");
-							bookAvgPrices.append(getAvgPriceForSize(avgBookSizes[j], o.getOrderSide(), sortedBook, 0));
-						}
-					}
+			// find proper slice from the history
+			for (int i = sl.size(); --i >= 0;) {
+				Slice s = sl.get(i);
+				if (s.startTime <= time && time < s.endTime)
+					return s;
+			}
+
+			// add missing slices to the beginning of slice list
+			while (time < sl.get(0).startTime) {
+				Slice next = sl.get(0);
+				final Slice slice = new Slice(symbol, next.startTime - period, period);
+				next.prev = slice;
+				sl.add(0, slice);
+			}
+
+			return sl.get(0);
+		}
+
+		private void removeOld(Watermark watermark) throws InterruptedException {
+			// done slices of each symbol, oldest first
+			List<List<Slice>> removed = new ArrayList<List<Slice>>();
+			for (List<Slice> sl : allSlices.values()) {
+				if (sl.get(0).startTime >= watermark.time)
+					continue;
+				List<Slice> symbolRemoved = new ArrayList<Slice>(2);
+				while (sl.get(0).startTime < watermark.time) {
+					Slice s = sl.remove(0);
+					symbolRemoved.add(s);
+					if (sl.isEmpty())
+						sl.add(new Slice(s));
 				}
-				else {
-					bbo.append("0, 0, ");
-					bbo.append(o.getPrice());
-					bbo.append(", ");
-					bbo.append(o.getSize());
-					bbo.append(", ");
-
-					if (calcAvgBookPrices) {
-						for (int j = 0; j < 5; j++) {
-							bookAvgPrices.append(getAvgPriceForSize(avgBookSizes[j], o.getOrderSide(), sortedBook, 0));
-							bookAvgPrices.append("0, ");
-						}
-					}
+				removed.add(symbolRemoved);
+			}
+			emitter.emit(watermark.seq, removed);
+			// roll the books forward into the slices that are still active
+			for (List<Slice> symbolRemoved : removed) {
+				Slice last = symbolRemoved.get(symbolRemoved.size() - 1);
+				allSlices.get(last.symbol).get(0).takeOverBook(last);
+			}
+			updateStatistics();
+		}
+
+		private void updateStatistics() {
+			long sliceCount = 0;
+			int maxSlices = 0;
+			for (List<Slice> sl : allSlices.values()) {
+				sliceCount += sl.size();
+				if (sl.size() > maxSlices) {
+					maxSlices = sl.size();
+					firstSliceDate = sl.get(0).startTime;
+					lastSliceDate = sl.get(sl.size() - 1).startTime;
 				}
 			}
+			this.sliceCount = sliceCount;
+			this.maxSlices = maxSlices;
+			this.symbolCount = allSlices.size();
+		}
+	}
 
-			if (bbo.length() == 0)
-				bbo.append("0, 0, 0, 0, ");
+	/**
+	 * Collects the done slices of a watermark from every shard. The last shard to arrive passes them to
+	 * {@link #slicesDone(List)} in rounds, the oldest done slice of every symbol in symbol order first, then
+	 * the next one and so on, and releases the other shards once they are emitted.
+	 */
+	private class Emitter {
+		private final List<List<Slice>> pending = new ArrayList<List<Slice>>();
+		private int arrived;
+		private long emittedSeq;
+		volatile long doneSlices;
+
+		synchronized void emit(long seq, List<List<Slice>> removed) throws InterruptedException {
+			pending.addAll(removed);
+			if (++arrived < shards.length) {
+				while (emittedSeq < seq)
+					wait();
+				return;
+			}
+			try {
+				emitPending();
+			} finally {
+				pending.clear();
+				arrived = 0;
+				emittedSeq = seq;
+				notifyAll();
+			}
+		}
 
-			if (calcAvgBookPrices && bookAvgPrices.length() == 0)
-				bookAvgPrices.append("0, 0, 0, 0, 0, 0, 0, 0, 0, 0, ");
+		synchronized void awaitEmitted(long seq) throws InterruptedException {
+			while (emittedSeq < seq)
+				wait();
+		}
 
-			output.append(bbo);
-			output.append(bookAvgPrices);
+		private void emitPending() {
+			Collections.sort(pending, new Comparator<List<Slice>>() {
+				public int compare(List<Slice> sl1, List<Slice> sl2) {
+					return sl1.get(0).symbol.compareTo(sl2.get(0).symbol);
+				}
+			});
+			for (int round = 0;; round++) {
+				boolean hasMore = false;
+				List<Slice> done = new ArrayList<Slice>(pending.size());
+				for (List<Slice> symbolRemoved : pending) {
+					if (round >= symbolRemoved.size())
+						continue;
+					Slice s = symbolRemoved.get(round);
+					if (startTime <= s.startTime && s.startTime <= endTime)
+						done.add(s);
+					if (round + 1 < symbolRemoved.size())
+						hasMore = true;
+				}
+				slicesDone(done);
+				doneSlices += done.size();
+				if (!hasMore)
+					break;
+				// roll the books forward into the next round
+				for (List<Slice> symbolRemoved : pending) {
+					if (round + 1 < symbolRemoved.size())
+						symbolRemoved.get(round + 1).takeOverBook(symbolRemoved.get(round));
+				}
+			}
+		}
+	}
 
-			// calculate vwap and cumulative size by time-and-sales
-			long cumulativeSize = 0;
-			double VWAP = 0;
+	/**
+	 * Invoked whenever some slices are done - i.e. have finished processing.
+	 * Add your processing code here.
+	 */
+	protected void slicesDone(List<Slice> slices) {
+		double[] avgBidPrices = new double[5];
+		double[] avgAskPrices = new double[5];
+		for (Slice slice : slices) {
+			// Initialize output string
+			StringBuilder output = new StringBuilder(slice.symbol + ", " + TimeFormat.DEFAULT.format(slice.startTime) + ", ");
 
-			for (TimeAndSale sale : slice.sales) {
-				cumulativeSize += sale.getSize();
-				VWAP += sale.getPrice() * sale.getSize();
+			// Check if within trading session
+			if (schedule != null) {
+				Session session = schedule.getSessionByTime(slice.startTime);
+				if (!session.isTrading())
+					slice.isValid = false;
+			}
+
+			// best levels and average prices straight off the sorted sides
+			OrderBook book = slice.getBook();
+			BookSide bids = book.getBids();
+			BookSide asks = book.getAsks();
+
+			// check invalid bbo / book cross, or two levels at the same price
+			if (bids.hasDuplicatePrices() || asks.hasDuplicatePrices() ||
+				bids.size() > 0 && asks.size() > 0 && bids.getPrice(0) >= asks.getPrice(0))
+				slice.isValid = false;
+
+			appendBestLevel(output, bids);
+			appendBestLevel(output, asks);
+
+			if (calcAvgBookPrices) {
+				bids.averagePrices(avgBookSizes, avgBidPrices);
+				asks.averagePrices(avgBookSizes, avgAskPrices);
+				for (int j = 0; j < 5; j++) {
+					appendAvgPrice(output, avgBidPrices[j]);
+					appendAvgPrice(output, avgAskPrices[j]);
+				}
 			}
-			if (cumulativeSize > 0) VWAP /= cumulativeSize;
+
+			// vwap and cumulative size of time-and-sales
+			long cumulativeSize = slice.sales == null ? 0 : slice.sales.getVolume();
+			double VWAP = slice.sales == null ? 0 : slice.sales.getVwap();
 
 			// finalize output
 			output.append(VWAP);
@@ -686,45 +1291,26 @@ public class Slicer implements PropertyChangeListener {
 
 			// print output
 			outputWriteLn(output.toString());
-
-			// debug book printing
-
-			//if (printBook) {
-			//	for (int i = 0; i < sortedBook.size(); i++)
-			//		System.out.println("  " + sortedBook.get(i));
-			//  System.out.println("***");
-			//}
-
 		}
 		outputFlush();
 	}
 
-	private String getAvgPriceForSize(long size, Side side, ArrayList<Order> sortedBook, int bboIndex) {
-		int direction = 1;
-		if (side == Side.BUY)
-			direction = -1;
-		if (side == Side.SELL)
-			bboIndex++;
-		long cumulativeSize = 0;
-		double avgPrice = 0;
-
-		for (int i = bboIndex; i >= 0 && i < sortedBook.size() && cumulativeSize < size; i += direction) {
-			Order o = sortedBook.get(i);
-			long orderSize = o.getSize();
-			if (cumulativeSize + orderSize > size) {
-				orderSize = size - cumulativeSize;
-				cumulativeSize = size;
-			} else
-				cumulativeSize += orderSize;
-			avgPrice += o.getPrice() * orderSize;
+	private static void appendBestLevel(StringBuilder output, BookSide side) {
+		if (side.size() == 0) {
+			output.append("0, 0, ");
+			return;
 		}
+		output.append(side.getPrice(0));
+		output.append(", ");
+		output.append(side.getSize(0));
+		output.append(", ");
+	}
 
-		if (cumulativeSize > 0) avgPrice /= cumulativeSize;
-
-		String result = "0, ";
+	private static void appendAvgPrice(StringBuilder output, double avgPrice) {
 		if (avgPrice > 0)
-			result = avgPrice + ", ";
-
-		return result;
+			output.append(avgPrice);
+		else
+			output.append('0');
+		output.append(", ");
 	}
 }
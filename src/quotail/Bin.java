@@ -9,19 +9,20 @@ public class Bin{
 	ArrayList<Cluster> legs = new ArrayList<Cluster>();
 	public Bin(Cluster cluster){
 		legs.add(cluster);
-		time = cluster.trades.getFirst().getTime();
-		quantity = cluster.trades.getFirst().getSize();
+		time = cluster.first().getTime();
+		quantity = cluster.first().getSize();
 	}
 	public String toString(){
-		StringBuilder sb = new StringBuilder();
-		sb.append("[");
-		for(Cluster cluster : legs){
-			sb.append(cluster.toJSON());
-			sb.append(",");
-		}
-		sb.deleteCharAt(sb.length() - 1);
-		sb.append("]");
-		return sb.toString();
+		JsonWriter json = new JsonWriter();
+		writeJSON(json);
+		return json.toString();
+	}
+	// the legs as a json array of clusters
+	public void writeJSON(JsonWriter json){
+		json.beginArray();
+		for(Cluster cluster : legs)
+			cluster.writeJSON(json);
+		json.endArray();
 	}
 	public void incrProcessed() { ++this.numProcessed; }
 	public boolean isProcessed(){ return numProcessed == legs.size(); }
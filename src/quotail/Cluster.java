@@ -1,98 +1,174 @@
 package quotail;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.TimerTask;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.dxfeed.event.market.Side;
 import com.dxfeed.event.market.TimeAndSale;
 
 public class Cluster {
-	// maintain the list of trades in chronological order (ascending order of sequences).
-	LinkedList<TimeAndSale> trades;
+	// processing state shared between the cluster producer adding trades and whichever thread claims the cluster for processing
+	private static final int OPEN = 0;
+	private static final int ADDING = 1;
+	private static final int PROCESSED = 2;
+	private final AtomicInteger state = new AtomicInteger(OPEN);
+	// maintain the trades in chronological order (ascending order of their dxfeed index, i.e. time and sequence).
+	// the indexes are kept in a parallel primitive array so inserts, cancels and corrections find their slot
+	// with a binary search, and in order trades are appended without any search at all
+	private TimeAndSale[] trades = new TimeAndSale[4];
+	private long[] indexes = new long[4];
+	private int size;
 	// This is important for proper categorization
 	public int quantity = 0;
+	// running quantity by aggressor side
+	public int buyQuantity = 0;
+	public int sellQuantity = 0;
+	public int midQuantity = 0;
 	public boolean isSpreadLeg = false;
 	public long openinterest = -1;
 	public long volume = -1;
 	public float money = 0;
 	public Side classification;
 	public Bin bin;
-	public boolean isProcessed = false;
 	public long creationTime;
+	// wall clock time the first trade was received from the feed, 0 if the message carried no stamps
+	long receivedAt;
+	// nanoTime at creation and when the consumer picked the cluster up, for latency tracking
+	final long createdNanos;
+	long maturedNanos;
+	// event time at which the cluster matures, set by the cluster consumer when it starts tracking the cluster
+	long eventDeadline;
 	public Cluster(TimeAndSale t){
 		isSpreadLeg = t.isSpreadLeg();
-		trades = new LinkedList<TimeAndSale>();
 		addTrade(t);
 		creationTime = System.currentTimeMillis();
+		createdNanos = System.nanoTime();
 	}
 	
-	// insert the trade in its proper place based on the sequence field
+	// claim this cluster for processing. returns false if another thread has already claimed it, in which case
+	// the caller must not process it. waits out a concurrent tryAddTrade so a claimed cluster never changes again
+	public boolean markProcessed(){
+		while(true){
+			int current = state.get();
+			if(current == PROCESSED)
+				return false;
+			if(current == OPEN && state.compareAndSet(OPEN, PROCESSED))
+				return true;
+			Thread.yield();
+		}
+	}
+
+	public boolean isProcessed(){ return state.get() == PROCESSED; }
+
+	// add the trade unless the cluster has already been claimed for processing
+	public boolean tryAddTrade(TimeAndSale t){
+		if(!state.compareAndSet(OPEN, ADDING))
+			return false;
+		try{
+			addTrade(t);
+		}
+		finally{
+			state.set(OPEN);
+		}
+		return true;
+	}
+
+	public int size(){ return size; }
+
+	// the earliest trade of the cluster
+	public TimeAndSale first(){ return trades[0]; }
+
+	public TimeAndSale get(int i){ return trades[i]; }
+
+	// insert the trade in its proper place based on the index field
 	public void addTrade(TimeAndSale t){
 		if(t.getSize() > 0){
-			float d1 = (float)(t.getPrice() - t.getBidPrice());
-			float d2 = (float)(t.getAskPrice() - t.getPrice());
-			if(Math.abs(d1 - d2) < .001)
-				t.setAggressorSide(Side.UNDEFINED);
-			else if(d1 < d2)
-				t.setAggressorSide(Side.SELL);
-			else
-				t.setAggressorSide(Side.BUY);
-
-			this.quantity += t.getSize();
-			this.money += t.getSize() * t.getPrice() * 100;
-			boolean hasInserted = false;
-			Iterator<TimeAndSale> it = trades.descendingIterator();
-			for(int index = trades.size(); it.hasNext(); --index){
-				TimeAndSale lastTrade = it.next();
-				if(lastTrade.getSequence() < t.getSequence()){
-					trades.add(index, t);
-					hasInserted = true;
-					break;
-				}
+			classifySide(t);
+			add(t, 1);
+			long index = t.getIndex();
+			int pos = size;
+			if(size > 0 && indexes[size - 1] > index){
+				// out of order trade, insert after any trade with the same index
+				pos = Arrays.binarySearch(indexes, 0, size, index);
+				if(pos < 0)
+					pos = -pos - 1;
+				while(pos < size && indexes[pos] == index)
+					++pos;
 			}
-			if(!hasInserted){
-				trades.add(0, t);
+			if(size == trades.length){
+				trades = Arrays.copyOf(trades, size * 2);
+				indexes = Arrays.copyOf(indexes, size * 2);
 			}
+			System.arraycopy(trades, pos, trades, pos + 1, size - pos);
+			System.arraycopy(indexes, pos, indexes, pos + 1, size - pos);
+			trades[pos] = t;
+			indexes[pos] = index;
+			++size;
 		}
 	}
 	
 	// attempt to find the trade in the internal trades array that matches the parameter. if found, remove and update aggregate information
 	public boolean cancelTrade(TimeAndSale t){
-		for(int i = 0; i < trades.size(); ++i){
-			TimeAndSale tns = trades.get(i);
-			if(tns.getSequence() == t.getSequence()){
-				// we've found the original trade, squash it
-				quantity -= tns.getSize();
-				money -= tns.getSize() * t.getPrice() * 100;
-				trades.remove(i);
-				return true;
-			}
-		}
-		return false;
+		int pos = find(t);
+		if(pos < 0)
+			return false;
+		// we've found the original trade, squash it
+		add(trades[pos], -1);
+		System.arraycopy(trades, pos + 1, trades, pos, size - pos - 1);
+		System.arraycopy(indexes, pos + 1, indexes, pos, size - pos - 1);
+		trades[--size] = null;
+		return true;
 	}
 	
 	public boolean correctTrade(TimeAndSale t){
-		for(int i = 0; i < trades.size(); ++i){
-			TimeAndSale tns = trades.get(i);
-			if(tns.getSequence() == t.getSequence()){
-				// we've found the original trade,  update it
-				quantity = quantity - (int)tns.getSize() + (int)t.getSize();
-				money = money - (int)(tns.getSize() * tns.getPrice() * 100) + (int)(t.getSize() * t.getPrice() * 100);
-				trades.set(i, t);
-				return true;
-			}
-		}
-		return false;		
+		int pos = find(t);
+		if(pos < 0)
+			return false;
+		// we've found the original trade,  update it
+		add(trades[pos], -1);
+		classifySide(t);
+		add(t, 1);
+		trades[pos] = t;
+		return true;
+	}
+
+	private int find(TimeAndSale t){
+		int pos = Arrays.binarySearch(indexes, 0, size, t.getIndex());
+		return pos >= 0 && pos < size ? pos : -1;
+	}
+
+	// classify the aggressor side of a single trade by where it printed relative to the bid and ask
+	private static void classifySide(TimeAndSale t){
+		float d1 = (float)(t.getPrice() - t.getBidPrice());
+		float d2 = (float)(t.getAskPrice() - t.getPrice());
+		if(Math.abs(d1 - d2) < .001)
+			t.setAggressorSide(Side.UNDEFINED);
+		else if(d1 < d2)
+			t.setAggressorSide(Side.SELL);
+		else
+			t.setAggressorSide(Side.BUY);
+	}
+
+	// add (sign 1) or remove (sign -1) the trade from the running aggregates
+	private void add(TimeAndSale t, int sign){
+		int qty = sign * (int)t.getSize();
+		quantity += qty;
+		money += qty * t.getPrice() * 100;
+		if(t.getAggressorSide() == Side.BUY)
+			buyQuantity += qty;
+		else if(t.getAggressorSide() == Side.SELL)
+			sellQuantity += qty;
+		else
+			midQuantity += qty;
 	}
 	
 	public void classifyCluster(){
-		classification = trades.get(0).getAggressorSide();
-		double bid0 = trades.get(0).getBidPrice();
-		double ask0 = trades.get(0).getAskPrice();
-		double price0 = trades.get(0).getPrice();
-		for(int i = 1; i < trades.size(); ++i){
-			TimeAndSale trade = trades.get(i);
+		classification = trades[0].getAggressorSide();
+		double bid0 = trades[0].getBidPrice();
+		double ask0 = trades[0].getAskPrice();
+		double price0 = trades[0].getPrice();
+		for(int i = 1; i < size; ++i){
+			TimeAndSale trade = trades[i];
 			if(trade.getAggressorSide() != classification){
 				double bid1 = trade.getBidPrice();
 				double ask1 = trade.getAskPrice();
@@ -122,68 +198,58 @@ public class Cluster {
 	}
 	
 	public String toJSON(){
-		StringBuilder sb = new StringBuilder();
-		sb.append("{\"symbol\":");
-		sb.append('"' + this.trades.get(0).getEventSymbol() + '"');
-		sb.append(",\"qty\":");
-		sb.append(this.quantity);
-		sb.append(",\"money\":");
-		sb.append(this.money);
-		sb.append(",\"side\":");
-		sb.append(this.classification == Side.BUY ? "\"B\"" : (this.classification == Side.SELL ? "\"S\"" : "\"U\""));
-		sb.append(",\"oi\":");
-		sb.append(this.openinterest >= 0 ? this.openinterest : null);
-		sb.append(",\"volume\":");
-		sb.append(this.volume);
-		sb.append(",\"time\":");
-		TimeAndSale tns = this.trades.get(0);
-		sb.append(tns.getTime());
-		sb.append(",\"sequence\":");
-		sb.append(tns.getSequence());
-		sb.append(",\"creationTime\":");
-		sb.append(this.creationTime);
-		sb.append(",\"bid\":");
-		sb.append(tns.getBidPrice());
-		sb.append(",\"ask\":");
-		sb.append(tns.getAskPrice());
-		sb.append(",\"price\":");
-		sb.append(tns.getPrice());
-		sb.append(",\"type\":");
-		sb.append('"' + tns.getType().toString() + '"');
-		sb.append(",\"isSpread\":");
-		sb.append(tns.isSpreadLeg());
-		sb.append(",\"conditions\":");
-		sb.append('"' + tns.getExchangeSaleConditions() + '"');
-		if(this.trades.size() > 1){
-			sb.append(",\"trades\":[");
-			for(TimeAndSale t : this.trades){
-				sb.append("{\"time\":");
-				sb.append(t.getTime());
-				sb.append(",\"bid\":");
-				sb.append(t.getBidPrice());
-				sb.append(",\"ask\":");
-				sb.append(t.getAskPrice());
-				sb.append(",\"price\":");
-				sb.append(t.getPrice());
-				sb.append(",\"side\":");
-				sb.append(t.getAggressorSide() == Side.BUY ? "\"B\"" : (t.getAggressorSide() == Side.SELL ? "\"S\"" : "\"U\""));
-				sb.append(",\"exchange\":");
-				sb.append("\"" + t.getExchangeCode() + "\"");
-				sb.append(",\"size\":");
-				sb.append(t.getSize());
-				sb.append(",\"sequence\":");
-				sb.append(t.getSequence());
-				sb.append("},");
+		JsonWriter json = new JsonWriter();
+		writeJSON(json);
+		return json.toString();
+	}
+
+	private static String side(Side side){
+		return side == Side.BUY ? "B" : (side == Side.SELL ? "S" : "U");
+	}
+
+	public void writeJSON(JsonWriter json){
+		TimeAndSale tns = this.trades[0];
+		json.beginObject();
+		json.name("symbol").value(tns.getEventSymbol());
+		json.name("qty").value(this.quantity);
+		json.name("money").value(this.money);
+		json.name("side").value(side(this.classification));
+		json.name("oi");
+		if(this.openinterest >= 0)
+			json.value(this.openinterest);
+		else
+			json.nullValue();
+		json.name("volume").value(this.volume);
+		json.name("time").value(tns.getTime());
+		json.name("sequence").value(tns.getSequence());
+		json.name("creationTime").value(this.creationTime);
+		json.name("bid").value(tns.getBidPrice());
+		json.name("ask").value(tns.getAskPrice());
+		json.name("price").value(tns.getPrice());
+		json.name("type").value(tns.getType().toString());
+		json.name("isSpread").value(tns.isSpreadLeg());
+		json.name("conditions").value(tns.getExchangeSaleConditions());
+		json.name("trades");
+		if(this.size > 1){
+			json.beginArray();
+			for(int i = 0; i < this.size; ++i){
+				TimeAndSale t = this.trades[i];
+				json.beginObject();
+				json.name("time").value(t.getTime());
+				json.name("bid").value(t.getBidPrice());
+				json.name("ask").value(t.getAskPrice());
+				json.name("price").value(t.getPrice());
+				json.name("side").value(side(t.getAggressorSide()));
+				json.name("exchange").value(t.getExchangeCode());
+				json.name("size").value(t.getSize());
+				json.name("sequence").value(t.getSequence());
+				json.endObject();
 			}
-			// remove trailing comma
-			sb.deleteCharAt(sb.length() - 1);
-			sb.append("]");
+			json.endArray();
 		}
 		else{
-			sb.append(",\"trades\": null");
+			json.nullValue();
 		}
-
-		sb.append("}");
-		return sb.toString();
+		json.endObject();
 	}
-}
\ No newline at end of file
+}
@@ -1,20 +1,24 @@
 package quotail;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
-import java.util.Date;
-import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.ArrayDeque;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Properties;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import kafka.javaapi.producer.Producer;
 import kafka.producer.KeyedMessage;
 import kafka.producer.ProducerConfig;
@@ -25,83 +29,162 @@ import com.dxfeed.event.market.Trade;
 import com.dxfeed.promise.Promise;
 
 public class ClusterConsumer implements Runnable{
-	private static PrintWriter clusterOut = null;
+	private static OutputStream clusterOut = null;
     private static Producer<String, String> producer = null;
     public static DXFeed feed = DXFeed.getInstance();
 
     private SpreadTracker spreadTracker;
-	private Map<String, Cluster> clusterMap;
+	private ConcurrentMap<String, Cluster> clusterMap;
 	private Map<String, Integer> uniqueMap;
 	private LinkedBlockingDeque<Cluster> clusterQueue;
+	private volatile Thread consumerThread;
+	// latest trade time seen by the producer, and the earliest event time deadline of the pending clusters
+	private volatile long eventTime = Long.MIN_VALUE;
+	private volatile long nextEventDeadline = Long.MIN_VALUE;
+	// set once no more clusters will be queued, every pending cluster is then processed and the thread exits
+	private volatile boolean finishing;
 	private final int CLUSTER_WAIT_TIME = 400;
 	private final int CLUSTER_TIMEOUT = 2000;
     private final int CLUSTER_QUANTITY_THRESHOLD = 100;
     private final int CLUSTER_MONEY_THRESHOLD = 50000;
-	private SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd");
 	private final String CLUSTER_CHANNEL = (System.getenv("NODE_ENV") == null || System.getenv("NODE_ENV").equals("development")) ?
 			"dev_rawClusters" : "rawClusters";
+	private final byte[] CLUSTER_CHANNEL_BYTES = CLUSTER_CHANNEL.getBytes(StandardCharsets.US_ASCII);
 	
 	public static JedisPool jedisPoolPubSub, jedisPoolCache;
+	// open interest is reloaded from redis every 10 minutes to pick up a late LoadOpenInterest run
+	private static final long OI_REFRESH_INTERVAL = 10*60*1000;
+	private static OpenInterestCache openInterestCache;
 	static{
 		JedisPoolConfig config = new JedisPoolConfig();
 		config.setMaxTotal(8);
 		jedisPoolPubSub = new JedisPool(config, "localhost", 6380);
 		jedisPoolCache = new JedisPool(config, "localhost", 6379);
 	}
-	private Jedis cache_client, pubsub_client;
-    public ClusterConsumer(LinkedBlockingDeque<Cluster> clusterQueue, Map<String, Cluster> clusterMap, SpreadTracker spreadTracker, String clusterFile){
+
+	// created on first use, it loads in the background so nothing waits for redis
+	private static synchronized OpenInterestCache openInterestCache(){
+		if(openInterestCache == null){
+			openInterestCache = new OpenInterestCache(jedisPoolCache, OI_REFRESH_INTERVAL);
+			openInterestCache.start();
+		}
+		return openInterestCache;
+	}
+	private Jedis pubsub_client;
+    public ClusterConsumer(LinkedBlockingDeque<Cluster> clusterQueue, ConcurrentMap<String, Cluster> clusterMap, SpreadTracker spreadTracker, String clusterFile){
+		this(clusterQueue, clusterMap, spreadTracker, clusterFile, true);
+	}
+
+	// the embedded pipeline runs without kafka and creates no producer
+    public ClusterConsumer(LinkedBlockingDeque<Cluster> clusterQueue, ConcurrentMap<String, Cluster> clusterMap, SpreadTracker spreadTracker, String clusterFile,
+    		boolean kafka){
 		this.clusterQueue = clusterQueue;
 		this.clusterMap = clusterMap;
 		this.spreadTracker = spreadTracker;
-		cache_client = jedisPoolCache.getResource();
-		pubsub_client = jedisPoolPubSub.getResource();
+		try{
+			pubsub_client = jedisPoolPubSub.getResource();
+		}
+		catch(JedisConnectionException e){
+			// lets the embedded pipeline run without redis, clusters then only go to the cluster file
+			System.out.println("unable to connect to redis pub/sub, clusters are not published");
+		}
 		
-		if(producer == null)
+		if(kafka && producer == null)
     		configureKafkaProducer();
 		try{
-        	if(clusterFile != null){
-        		clusterOut = new PrintWriter(new BufferedWriter(new FileWriter(clusterFile)));
-        	}
+			// the cluster file is shared by all the consumers
+			synchronized(ClusterConsumer.class){
+	        	if(clusterFile != null && clusterOut == null){
+	        		clusterOut = new BufferedOutputStream(new FileOutputStream(clusterFile));
+	        	}
+			}
         }
         catch(IOException e){
         	e.printStackTrace();
         }
 	}
 	
+	// the producer thread calls this after every trade so the consumer knows how far event time has advanced.
+	// the consumer is only woken up when this moves past the earliest pending event time deadline
+	public void advanceEventTime(long time){
+		if(time > eventTime)
+			eventTime = time;
+		if(eventTime > nextEventDeadline){
+			Thread consumerThread = this.consumerThread;
+			if(consumerThread != null)
+				LockSupport.unpark(consumerThread);
+		}
+	}
+
+	// process every pending cluster and stop, called once the producers feeding this consumer have stopped
+	public void finish(){
+		finishing = true;
+		Thread consumerThread = this.consumerThread;
+		if(consumerThread != null)
+			LockSupport.unpark(consumerThread);
+	}
+
+	// clusters mature when event time has moved CLUSTER_WAIT_TIME past their first trade or when CLUSTER_TIMEOUT
+	// of wall clock time has passed since they were created, whichever comes first. pending clusters are kept both
+	// in a heap ordered by event time deadline and in creation order, and the thread parks until the earlier of
+	// the two deadlines instead of polling
 	public void run(){
-		Cluster nextCluster;
+		consumerThread = Thread.currentThread();
+		PriorityQueue<Cluster> byEventTime = new PriorityQueue<Cluster>(64, new Comparator<Cluster>(){
+			public int compare(Cluster c1, Cluster c2){
+				return Long.compare(c1.eventDeadline, c2.eventDeadline);
+			}
+		});
+		ArrayDeque<Cluster> byCreationTime = new ArrayDeque<Cluster>();
 		try{
-			while((nextCluster = clusterQueue.take()) != null){
-				long lastClusterTime = clusterQueue.isEmpty() ? nextCluster.trades.getFirst().getTime() : clusterQueue.getLast().trades.getLast().getTime();
-				long nextClusterTime = nextCluster.trades.getFirst().getTime();
-				
-				// reinsert the next cluster to the end of the queue if it hasn't "matured", or begin processing
-				if(lastClusterTime - nextCluster.trades.getFirst().getTime() > CLUSTER_WAIT_TIME ||
-						System.currentTimeMillis() - nextCluster.creationTime > CLUSTER_TIMEOUT){
-					// discard the cluster if it has already been processed
-					boolean wasProcessed = false;
-					synchronized(nextCluster){
-						if(!nextCluster.isProcessed){
-							nextCluster.isProcessed = true;
-						}
-						else
-							wasProcessed = true;
-					}
-					if(!wasProcessed){
+			while(!Thread.currentThread().isInterrupted()){
+				Cluster nextCluster;
+				while((nextCluster = clusterQueue.poll()) != null){
+					nextCluster.eventDeadline = nextCluster.first().getTime() + CLUSTER_WAIT_TIME;
+					byEventTime.add(nextCluster);
+					byCreationTime.add(nextCluster);
+				}
+
+				// clusters processed early by the producer, or already matured through the other deadline, are discarded here
+				boolean finished = finishing;
+				long watermark = finished ? Long.MAX_VALUE : eventTime;
+				while(!byEventTime.isEmpty() && (byEventTime.peek().eventDeadline < watermark || byEventTime.peek().isProcessed())){
+					nextCluster = byEventTime.poll();
+					if(nextCluster.markProcessed())
 						processCluster(nextCluster);
-					}
 				}
-				else {
-					clusterQueue.put(nextCluster);
+				long now = System.currentTimeMillis();
+				while(!byCreationTime.isEmpty() && (now - byCreationTime.peek().creationTime > CLUSTER_TIMEOUT || byCreationTime.peek().isProcessed())){
+					nextCluster = byCreationTime.poll();
+					if(nextCluster.markProcessed())
+						processCluster(nextCluster);
 				}
-				Thread.sleep(10);
+
+				if(finished && clusterQueue.isEmpty() && byEventTime.isEmpty())
+					break;
+				// publish the next event time deadline before checking for new work, so a producer advancing past it
+				// after the check leaves an unpark permit behind
+				nextEventDeadline = byEventTime.isEmpty() ? Long.MIN_VALUE : byEventTime.peek().eventDeadline;
+				if(!clusterQueue.isEmpty() || eventTime > nextEventDeadline && !byEventTime.isEmpty())
+					continue;
+				if(byCreationTime.isEmpty())
+					LockSupport.park(this);
+				else
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(byCreationTime.peek().creationTime + CLUSTER_TIMEOUT + 1 - now));
 			}
-		}catch(InterruptedException e){
-			e.printStackTrace();
 		}
         finally{
-	    	if(clusterOut != null)
-	    		clusterOut.close();
+        	consumerThread = null;
+	    	if(clusterOut != null){
+	    		synchronized(clusterOut){
+	    			try{
+	    				clusterOut.flush();
+	    			}
+	    			catch(IOException e){
+	    				e.printStackTrace();
+	    			}
+	    		}
+	    	}
         }
 	}
 
@@ -120,17 +203,17 @@ public class ClusterConsumer implements Runnable{
 	}
 	
 	public void processCluster(Cluster cluster){
-		cluster.isProcessed = true;
-		String symbol = cluster.trades.getFirst().getEventSymbol();
+		cluster.maturedNanos = System.nanoTime();
+		Latency.CLUSTER_WAIT.recordNanos(cluster.maturedNanos - cluster.createdNanos);
+		String symbol = cluster.first().getEventSymbol();
 		String ticker = DXFeedUtils.getTicker(symbol);
 
 		if(cluster.isSpreadLeg){
 			symbol += ":spread";
 		}
 		try{
-    		synchronized(clusterMap){
-				clusterMap.remove(symbol);
-    		}
+			// only remove the mapping if it still points at this cluster, the producer may already have replaced it
+			clusterMap.remove(symbol, cluster);
     		if(cluster.quantity >= CLUSTER_QUANTITY_THRESHOLD){
 				cluster.classifyCluster();
 				decorateCluster(cluster);
@@ -142,37 +225,28 @@ public class ClusterConsumer implements Runnable{
 			e.printStackTrace();
 		}catch(Exception e){
 			e.printStackTrace();
-			System.out.println(cluster.trades.get(0).getTime() + " " +
-				cluster.trades.get(0).getSequence()+ " " +
-				cluster.trades.get(0).getEventSymbol());
+			System.out.println(cluster.first().getTime() + " " +
+				cluster.first().getSequence()+ " " +
+				cluster.first().getEventSymbol());
 		}
 	}
 	
 	public void decorateCluster(Cluster cluster){
-		String symbol = cluster.trades.get(0).getEventSymbol();
+		String symbol = cluster.first().getEventSymbol();
 		String ticker = DXFeedUtils.getTicker(symbol);
-		Date d = new Date(cluster.trades.get(0).getTime());
-
-		List<String> oiList = cache_client.hmget(df.format(d) + "_" + ticker + "_oi", symbol);
-		String oi = "null";
-		if(oiList != null && oiList.get(0) != null)
-			oi = oiList.get(0);
-		cluster.openinterest = oi.equals("null") ? -1 : Integer.parseInt(oi);
+		cluster.openinterest = openInterestCache().get(symbol, cluster.first().getTime());
 		cluster.volume += cluster.quantity;
 		if(cluster.isSpreadLeg){
 			processSpreadLeg(cluster, ticker);
 		}
 		else{
-//			KeyedMessage<String, String> message = new KeyedMessage<String, String>("clusters", DXFeedUtils.getTicker(symbol), "[" + cluster.toJSON() + "]");
-//			producer.send(message);
-			pubsub_client.publish(CLUSTER_CHANNEL, "[" + cluster.toJSON() + "]");
-			if(clusterOut != null){
-    			synchronized(clusterOut){
-	    			// write out cluster to file
-	    			clusterOut.println("[" + cluster.toJSON() + "]");
-	    			clusterOut.flush();
-    			}
-    		}
+			// serialize once and hand the same bytes to every sink
+			JsonWriter json = JsonWriter.pooled();
+			json.beginArray();
+			cluster.writeJSON(json);
+			json.endArray();
+			publish(json.toByteArray());
+			recordPublished(cluster);
 		}
 
 	}
@@ -183,34 +257,72 @@ public class ClusterConsumer implements Runnable{
 		// afterwards, if the number of processed legs equals the size of the bin, delete the bin
 		// and send it out if the bin size is greater than 0
 		boolean isSpreadProcessed;
-		String spreadStr = "";
+		byte[] message = null;
+		Cluster[] legs = null;
 		Bin bin = cluster.bin;
 		synchronized(bin){
 			if(cluster.quantity >= CLUSTER_QUANTITY_THRESHOLD){
 				bin.incrProcessed();
 //    			System.out.println(String.format("SPREAD CLUSTER FOUND (%d/%d)\t%s\t%d\t%f\t%f\t%f\t%d", bin.numProcessed, bin.legs.size(),
-//    					cluster.trades.get(0).getEventSymbol(), cluster.trades.get(0).getTime(), cluster.trades.get(0).getBidPrice(),
-//    					cluster.trades.get(0).getAskPrice(), cluster.trades.get(0).getPrice(), cluster.quantity));
+//    					cluster.first().getEventSymbol(), cluster.first().getTime(), cluster.first().getBidPrice(),
+//    					cluster.first().getAskPrice(), cluster.first().getPrice(), cluster.quantity));
 			}
 			else
 				bin.legs.remove(cluster);
 			isSpreadProcessed = bin.isProcessed();
 			if(isSpreadProcessed){
 				spreadTracker.removeBin(bin, ticker);
-				spreadStr = bin.toString();
+				message = matchSpread(bin);
+				legs = bin.legs.toArray(new Cluster[bin.legs.size()]);
 			}
 		}
-		if(isSpreadProcessed && bin.legs.size() > 0){
-//			KeyedMessage<String, String> message = new KeyedMessage<String, String>(TOPIC, ticker, spreadStr);
+		if(isSpreadProcessed && message != null){
+//			KeyedMessage<String, String> message = new KeyedMessage<String, String>(TOPIC, ticker, new String(spread));
 //			producer.send(message);
-			pubsub_client.publish(CLUSTER_CHANNEL, spreadStr);
-			if(clusterOut != null){
-    			synchronized(clusterOut){
-	    			// write out cluster to file
-	    			clusterOut.println(spreadStr);
-	    			clusterOut.flush();
-    			}
-    		}
+			publish(message);
+			for(Cluster leg : legs)
+				recordPublished(leg);
+		}
+	}
+
+	private void recordPublished(Cluster cluster){
+		long now = System.nanoTime();
+		if(cluster.maturedNanos > 0)
+			Latency.MATURE_TO_PUBLISH.recordNanos(now - cluster.maturedNanos);
+		if(cluster.receivedAt > 0)
+			Latency.RECEIVE_TO_PUBLISH.recordMillis(System.currentTimeMillis() - cluster.receivedAt);
+	}
+
+	// serialize a completed bin as a spread record when its legs form a consistent spread, otherwise as
+	// one array of its legs like before. null when no leg of the bin made the quantity threshold
+	private byte[] matchSpread(Bin bin){
+		if(bin.legs.isEmpty())
+			return null;
+		JsonWriter json = JsonWriter.pooled();
+		SpreadMatcher.Spread spread = SpreadMatcher.match(bin);
+		if(spread != null)
+			spread.writeJSON(json);
+		else
+			bin.writeJSON(json);
+		return json.toByteArray();
+	}
+
+	// send a serialized cluster or spread to redis pub/sub and the cluster file
+	private void publish(byte[] message){
+		if(pubsub_client != null)
+			pubsub_client.publish(CLUSTER_CHANNEL_BYTES, message);
+		if(clusterOut != null){
+			synchronized(clusterOut){
+				try{
+					// write out cluster to file
+					clusterOut.write(message);
+					clusterOut.write('\n');
+					clusterOut.flush();
+				}
+				catch(IOException e){
+					e.printStackTrace();
+				}
+			}
 		}
 	}
 }
@@ -1,222 +1,190 @@
 package quotail;
 
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.Date;
 import java.util.Map;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.text.SimpleDateFormat;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.StreamCorruptedException;
 
-import com.dxfeed.event.market.Side;
 import com.dxfeed.event.market.TimeAndSale;
 
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPoolConfig;
 import kafka.consumer.ConsumerIterator;
 import kafka.consumer.KafkaStream;
 
 public class ClusterProducer implements Runnable {
-	public static JedisPool jedisPool = new JedisPool(new JedisPoolConfig(), "localhost");
-	
-    private static Calendar calendar = new GregorianCalendar();
-    private static final int REDIS_KEY_EXPIRY_TIME = 24*60*60;
     private final int CLUSTER_WAIT_TIME = 400;
     private final int CLUSTER_QUANTITY_THRESHOLD = 100;
-//    static{
-//    	// set expiry of redis keys to 9:00 of the following day
-//    	calendar.add(Calendar.DATE, 1);
-//		calendar.set(Calendar.HOUR, 9);
-//		calendar.set(Calendar.MINUTE, 0);
-//		calendar.set(Calendar.AM_PM, 0);
-//    }
 
 	private KafkaStream m_stream;
+	// set instead of the stream when running embedded
+	private TradeRing ring;
     private int m_threadNumber;
-    private HashMap<String, Cluster> clusterMap;
+    private ConcurrentMap<String, Cluster> clusterMap;
     private LinkedBlockingDeque<Cluster> clusterQueue;
-    private Map<String, String> aggVolMap = new HashMap<String, String>();
     private Map<String, Long> contractVolMap = new HashMap<String, Long>();
     private SpreadTracker spreadTracker = new SpreadTracker();
     private ClusterConsumer clusterConsumer;
-    // date format object for generating redis keys
-    private SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd");
-	private Jedis jedis;
+    private TradeSerializer serializer = new TradeSerializer();
+    // null unless aggregate volume is being written to redis
+    private RedisVolumeAggregator volumeAggregator;
     
     public ClusterProducer(KafkaStream a_stream, int a_threadNumber, LinkedBlockingDeque<Cluster> clusterQueue,
-    		HashMap<String, Cluster> clusterMap, SpreadTracker spreadTracker, ClusterConsumer clusterConsumer) {
+    		ConcurrentMap<String, Cluster> clusterMap, SpreadTracker spreadTracker, ClusterConsumer clusterConsumer,
+    		RedisVolumeAggregator volumeAggregator) {
         m_threadNumber = a_threadNumber;
         m_stream = a_stream;
         this.clusterMap = clusterMap;
         this.clusterQueue = clusterQueue;
         this.spreadTracker = spreadTracker;
         this.clusterConsumer = clusterConsumer;
-        this.jedis = TradesConsumer.updateRedis ? jedisPool.getResource() : null;
-        aggVolMap.put("CA", "0");
-    	aggVolMap.put("CB", "0");
-    	aggVolMap.put("CM", "0");
-    	aggVolMap.put("PA", "0");
-    	aggVolMap.put("PB", "0");
-    	aggVolMap.put("PM", "0");
+        this.volumeAggregator = volumeAggregator;
     }
 
-    // update both aggregate ticker volume and contract volume
-    // ticker agg vol structure is  AAPL => {"CA": "593", "CB": "4818", "CM": "31", "PA": "1241", "PB": "83", "PM": "288"}
-    // contract agg vol structure is AAPL => {"AAPL151018C00125000": "B:203,A:312,M:21", ...}
-    private void updateRedisAggVol(TimeAndSale t, String ticker){
-	    Date d = new Date(t.getTime());
-	    char optionType = t.getEventSymbol().substring(7).lastIndexOf('C') == -1 ? 'P' : 'C';
-	    char aggressorSide = t.getAggressorSide() == Side.BUY ? 'A' : (t.getAggressorSide() == Side.SELL ? 'B' : 'M');
-
-	    String tickerHashKey = "" + optionType + aggressorSide;
-	    String contractHashKey = DXFeedUtils.normalizeContract(t.getEventSymbol());
-    	String tickerVolKey =  df.format(d) + "_" + ticker + "_agg_vol";
-    	String contractVolKey = df.format(d) + "_" + ticker + "_contract_vol";
-    	Map<String, String> updatedVol = new HashMap<String, String>();
-    	Map<String, String> updatedContractVol = new HashMap<String, String>();
-    	// update ticker aggregate volume
-    	if(jedis.exists(tickerVolKey)){
-    		String agg_vol = jedis.hmget(tickerVolKey, tickerHashKey).get(0);
-    		agg_vol = agg_vol == null ? "0" : agg_vol;
-	    	long contractSize = t.isCancel() ? t.getSize() * -1 : ( t.isCorrection() ? 0 : t.getSize() );
-	    	long aggVol = contractSize + Integer.parseInt(agg_vol);
-	    	updatedVol.put(tickerHashKey, "" + aggVol);
-	    	jedis.hmset(tickerVolKey, updatedVol);
-	    	jedis.expire(tickerVolKey, REDIS_KEY_EXPIRY_TIME);
-    	}
-	    else{
-	    	updatedVol.putAll(aggVolMap);
-	    	updatedVol.put(tickerHashKey, "" + t.getSize());
-	    	jedis.hmset(tickerVolKey, updatedVol);
-	    	jedis.expire(tickerVolKey, REDIS_KEY_EXPIRY_TIME);
-	    }
-
-    	// update contract aggregate volume
-		long contractSize = t.isCancel() ? t.getSize() * -1 : (t.isCorrection() ? 0 : t.getSize());
-		String contractVol = "B:0,A:0,M:0";
-    	if(jedis.exists(contractVolKey)){
-    		String currentVol = jedis.hmget(contractVolKey, contractHashKey).get(0);
-    		if(currentVol != null){
-    			contractVol = currentVol;
-        		for(String s : currentVol.split(",")){
-        			if(aggressorSide == s.charAt(0)){
-        				contractSize += Long.parseLong(s.split(":")[1]);
-        			}
-        		}    			
-    		}
-    	}
-		contractVol = contractVol.replaceFirst(aggressorSide + ":[0-9]+", aggressorSide + ":" + contractSize);
-		updatedContractVol.put(contractHashKey, contractVol);
-		jedis.hmset(contractVolKey, updatedContractVol);
-		jedis.expire(contractVolKey, REDIS_KEY_EXPIRY_TIME);
+    // in-process variant fed straight from the feed listener through a ring, see EmbeddedPipeline
+    public ClusterProducer(TradeRing ring, int a_threadNumber, LinkedBlockingDeque<Cluster> clusterQueue,
+    		ConcurrentMap<String, Cluster> clusterMap, SpreadTracker spreadTracker, ClusterConsumer clusterConsumer,
+    		RedisVolumeAggregator volumeAggregator) {
+        this((KafkaStream)null, a_threadNumber, clusterQueue, clusterMap, spreadTracker, clusterConsumer, volumeAggregator);
+        this.ring = ring;
     }
-   
-    
+
     public void run() {
     	System.out.println("starting thread..." + m_threadNumber);
-    	ConsumerIterator<byte[], byte[]> it = m_stream.iterator();
-	    TimeAndSale t = null;
-	    // contract and ticker symbols
-	    String symbol, ticker;
 	    try{
-	    	while (it.hasNext()){
-    	    	// convert byte[] to TimeAndSale object
-	        	byte[] serializedTrade = it.next().message();
-	         	ByteArrayInputStream in = new ByteArrayInputStream(serializedTrade);
-    		    ObjectInputStream is = new ObjectInputStream(in);
-    		    t = (TimeAndSale)is.readObject();
-    		    symbol = t.getEventSymbol();
-    		    ticker = DXFeedUtils.getTicker(symbol);
-    		    // update redis with aggregate counts
-    		    if(TradesConsumer.updateRedis){
-    		    	updateRedisAggVol(t, ticker);
-    		    }
-    		    // continue if invalid trade of size 0 or drainqueue flag is on
-    		    if(t.getSize() == 0 || TradesConsumer.drainQueue){
-    		    	System.out.println(t);
-    		    	continue;
-    		    }
-    		    
-    		    long contractVol = 0;
-       		    if(contractVolMap.containsKey(symbol)){
-       		    	contractVol = contractVolMap.get(symbol);
-       		    }
-       		    contractVolMap.put(symbol, contractVol + t.getSize());
-
-       		    if(t.isSpreadLeg()){
-       		    	symbol += ":spread";
-       		    }
-		    	synchronized(clusterMap){
-//		    		if(t.isCancel() && clusterMap.containsKey(symbol)){
-//		    			Cluster cluster = clusterMap.get(symbol);
-//		    			if(clusterMap.get(symbol).cancelTrade(t)){
-//		    				// if we were successfully able to eliminate the error at this stage, then
-//		    				// don't process the trade and move on. otherwise, it will need to be sent
-//		    				// further down the pipeline
-//		    				continue;
-//		    			}
-//		    		}
-//		    		else if(t.isCorrection() && clusterMap.containsKey(symbol)){
-//		    			if(clusterMap.get(symbol).correctTrade(t)){
-//		    				continue;
-//		    			}
-//		    		}
-		    		if(!clusterMap.containsKey(symbol)){
-    		    		// create new cluster for this trade if none exists yet for the contract
-    		    		createCluster(t, symbol, ticker, contractVol);
-	    		    }
-	    		    else{
-	    		    	Cluster cluster = clusterMap.get(symbol);
-	    		    	if(Math.abs(t.getTime() - cluster.trades.getFirst().getTime()) > CLUSTER_WAIT_TIME){
-	    		    		// most recent cluster is outside the cluster interval, or we found a mismatch in spreads, being processing right away
-	    		    		boolean wasProcessed = false;
-	    		    		synchronized(cluster){
-	    		    			// synchronize access to processing cluster so the cluster consumer thread does not attempt to do so at the same time
-		    		    		if(!cluster.isProcessed){
-		    		    			cluster.isProcessed = true;
-		    		    		}
-		    		    		else
-		    		    			wasProcessed = true;
-		    		    	}
-	    		    		if(!wasProcessed){
-	    		    			clusterConsumer.processCluster(cluster);
-	    		    			createCluster(t, symbol, ticker, contractVol);
-	    		    		}
-	    		    	}
-	    		    	else{
-	    		    		clusterMap.get(symbol).addTrade(t);
-	    		    	}
-	    		    }
-    		    }
-    	    }
+	    	if(ring != null)
+	    		consumeRing();
+	    	else
+	    		consumeStream();
         }
-	    catch(StreamCorruptedException e){
-	    	System.out.println("Stream corrupted");
+	    catch(Exception e){
 	    	e.printStackTrace();
 	    }
-	    catch(IOException e){
-	    	e.printStackTrace();
+        System.out.println("Shutting down Thread: " + m_threadNumber);
+    }
+
+    private void consumeStream() throws InterruptedException {
+    	ConsumerIterator<byte[], byte[]> it = m_stream.iterator();
+	    TimeAndSale t = null;
+	    // receive and send stamps carried by the message
+	    long[] stamps = new long[2];
+    	while (it.hasNext()){
+	    	// convert byte[] to TimeAndSale object
+        	byte[] serializedTrade = it.next().message();
+		    t = serializer.fromBytes(serializedTrade, stamps);
+		    if(t == null){
+		    	System.out.println("skipping malformed trade message");
+		    	continue;
+		    }
+		    long decodedAt = System.nanoTime();
+		    if(stamps[1] > 0){
+		    	Latency.SEND_TO_DECODE.recordMillis(System.currentTimeMillis() - stamps[1]);
+		    }
+		    if(!processTradeSafely(t, stamps[0]))
+		    	continue;
+		    Latency.DECODE_TO_CLUSTER.recordNanos(System.nanoTime() - decodedAt);
 	    }
-	    catch(ClassNotFoundException e){
-	    	e.printStackTrace();
+    }
+
+    // trades arrive already decoded, take returns null once the pipeline is shut down and the ring is empty
+    private void consumeRing() throws InterruptedException {
+    	TimeAndSale t;
+    	while ((t = ring.take()) != null){
+    		long start = System.nanoTime();
+    		if(!processTradeSafely(t, ring.receivedAt()))
+    			continue;
+    		Latency.DECODE_TO_CLUSTER.recordNanos(System.nanoTime() - start);
+    	}
+    }
+
+    // a trade that fails to process is logged and skipped, it must not take down the thread that feeds the partition
+    private boolean processTradeSafely(TimeAndSale t, long receivedAt) throws InterruptedException {
+    	try{
+    		processTrade(t, receivedAt);
+    		return true;
+    	}
+    	catch(RuntimeException e){
+    		System.out.println("skipping trade that failed to process: " + t);
+    		e.printStackTrace();
+    		return false;
+    	}
+    }
+
+    private void processTrade(TimeAndSale t, long receivedAt) throws InterruptedException {
+	    // contract and ticker symbols
+	    String symbol = t.getEventSymbol();
+	    OptionSymbol option = OptionSymbol.of(symbol);
+	    String ticker = option.root;
+	    // update redis with aggregate counts
+	    if(volumeAggregator != null){
+	    	volumeAggregator.record(t, option);
 	    }
-	    catch(Exception e){
-	    	e.printStackTrace();
+	    // skip invalid trade of size 0 or if drainqueue flag is on
+	    if(t.getSize() == 0 || TradesConsumer.drainQueue){
+	    	System.out.println(t);
+	    	return;
 	    }
-	    finally{
-		    jedis.close();
+	    
+	    long contractVol = 0;
+	    if(contractVolMap.containsKey(symbol)){
+	    	contractVol = contractVolMap.get(symbol);
 	    }
-        System.out.println("Shutting down Thread: " + m_threadNumber);
+	    contractVolMap.put(symbol, contractVol + t.getSize());
+
+	    if(t.isSpreadLeg()){
+	    	symbol += ":spread";
+	    }
+//		if(t.isCancel() && clusterMap.containsKey(symbol)){
+//			Cluster cluster = clusterMap.get(symbol);
+//			if(clusterMap.get(symbol).cancelTrade(t)){
+//				// if we were successfully able to eliminate the error at this stage, then
+//				// don't process the trade and move on. otherwise, it will need to be sent
+//				// further down the pipeline
+//				return;
+//			}
+//		}
+//		else if(t.isCorrection() && clusterMap.containsKey(symbol)){
+//			if(clusterMap.get(symbol).correctTrade(t)){
+//				return;
+//			}
+//		}
+	    addToCluster(t, symbol, ticker, contractVol, receivedAt);
+	    clusterConsumer.advanceEventTime(t.getTime());
     }
     
-    private void createCluster(TimeAndSale t, String symbol, String ticker, long contractVol) throws InterruptedException{
+    // add the trade to the open cluster for its contract. the cluster map is shared with the cluster consumer
+    // (and possibly other producers), so instead of locking, each step is retried until it wins: a cluster
+    // is only ever replaced through putIfAbsent, claimed for processing through markProcessed and
+    // removed with a conditional remove
+    private void addToCluster(TimeAndSale t, String symbol, String ticker, long contractVol, long receivedAt) throws InterruptedException{
+    	while(true){
+    		Cluster cluster = clusterMap.get(symbol);
+    		if(cluster == null){
+    			// create new cluster for this trade if none exists yet for the contract
+    			if(createCluster(t, symbol, ticker, contractVol, receivedAt))
+    				return;
+    		}
+    		else if(Math.abs(t.getTime() - cluster.first().getTime()) > CLUSTER_WAIT_TIME){
+    			// most recent cluster is outside the cluster interval, begin processing right away
+    			if(cluster.markProcessed())
+    				clusterConsumer.processCluster(cluster);
+    			else
+    				clusterMap.remove(symbol, cluster);
+    		}
+    		else if(cluster.tryAddTrade(t)){
+    			return;
+    		}
+    		else{
+    			// the cluster consumer claimed this cluster while we were adding to it, start a new one
+    			clusterMap.remove(symbol, cluster);
+    		}
+    	}
+    }
+
+    private boolean createCluster(TimeAndSale t, String symbol, String ticker, long contractVol, long receivedAt) throws InterruptedException{
     	Cluster cluster = new Cluster(t);
     	cluster.volume = contractVol;
+    	cluster.receivedAt = receivedAt;
+    	if(clusterMap.putIfAbsent(symbol, cluster) != null)
+    		return false;
     	if(t.isSpreadLeg()){
     		// spread tracking logic, add spread leg for this ticker
     		synchronized(spreadTracker){
@@ -228,7 +196,7 @@ public class ClusterProducer implements Runnable {
     		}
     	}
 //    	System.out.println("adding new cluster for trade: " + t);
-    	clusterMap.put(symbol, cluster);
     	clusterQueue.put(cluster);
+    	return true;
     }
-}
\ No newline at end of file
+}
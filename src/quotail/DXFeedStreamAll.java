@@ -1,11 +1,6 @@
 package quotail;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.PrintWriter;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
@@ -24,11 +19,18 @@ import org.apache.commons.cli.*;
 
 //kafka imports
 import kafka.javaapi.producer.Producer;
-import kafka.producer.KeyedMessage;
 import kafka.producer.ProducerConfig;
 
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
 public class DXFeedStreamAll{
 	static Producer<byte[], byte[]> producer;
+	static TradeSink sender;
+	// sizing of the buffer between the dxfeed listener and kafka, or of each ring in embedded mode
+	static int sendBufferSize = 1 << 18;
+	static int sendBatchSize = 500;
+	static long lingerMillis = 5;
 	static int counter;
 	static Mode mode;
 	public enum Mode{
@@ -36,63 +38,128 @@ public class DXFeedStreamAll{
 	}
 	public static boolean updateTradeTime = false;
 	static final String TOPIC_NAME = "timeandsales4";
-	static PrintWriter tradeOut = null;
+	static TradeJournal.Writer journal = null;
 	static PrintWriter canceledOut = null;
 	public static void main(String[] args){
+		processOptions(args);
+	}
+	
+	static void configureProducer(String tickerWeights, boolean blockWhenFull){
 		// config block for kafka producer
 		// http://kafka.apache.org/documentation.html#topic-configs
 		// Read section 3.3 Producer Configs
 		Properties props = new Properties();
 		props.put("metadata.broker.list", "localhost:9092");
-		// we have the option of overriding the default serializer here, could this be used to remove the casting that the consumer has to do?
+		// trades are encoded with TradeSerializer by the sender thread, keys are the raw ticker bytes
 		props.put("serializer.class", "kafka.serializer.DefaultEncoder");
+		props.put("key.serializer.class", "kafka.serializer.DefaultEncoder");
 		props.put("partitioner.class", "quotail.TickerPartitioner");
+		if(tickerWeights != null)
+			props.put(TickerPartitioner.WEIGHTS_PROPERTY, tickerWeights);
 		props.put("request.required.acks", "1");
 		ProducerConfig config = new ProducerConfig(props);
 		producer = new Producer<byte[], byte[]>(config);
-		processOptions(args);
+		sender = new TradeSender(producer, TOPIC_NAME, sendBufferSize, sendBatchSize, lingerMillis, blockWhenFull).start();
+	}
+
+	// cluster the trades in this process instead of sending them to kafka
+	static void configureEmbedded(int partitions, String tickerWeights, String clusterFile, boolean blockWhenFull, boolean updateRedis, long redisFlushInterval){
+		RedisVolumeAggregator volumeAggregator = null;
+		if(updateRedis)
+			volumeAggregator = new RedisVolumeAggregator(new JedisPool(new JedisPoolConfig(), "localhost"), redisFlushInterval);
+		sender = new EmbeddedPipeline(partitions, sendBufferSize, new TickerPartitioner(tickerWeights), clusterFile, blockWhenFull, volumeAggregator).start();
 	}
 	
 	static void processOptions(String[] args){
 		Options options = new Options();
 		Option filename = OptionBuilder.withArgName("file").hasArg()
-				.withDescription("the file path from which to read trades")
+				.withDescription("the trade journal (directory or segment) from which to replay trades")
 				.create("file");
 		Option outfile = OptionBuilder.withArgName("outfile").hasArg()
-				.withDescription("the file path to which trades are written")
+				.withDescription("the trade journal directory to which trades are written")
 				.create("outfile");
 		Option contracts = OptionBuilder.withArgName("contracts").hasArg()
 				.withDescription("comma separated list of contracts to subscribe to when in time series mode")
 				.create("contracts");
 		Option fromtime = OptionBuilder.withArgName("fromtime").hasArg()
 				.withDescription("UNIX timestamp from which to read timeseries options").create("fromtime");
+		Option sendBuffer = OptionBuilder.withArgName("send_buffer").hasArg()
+				.withDescription("number of trades buffered between the feed and kafka, per partition with -embedded. when it is full, trades are dropped in real-time mode and replays wait for room (default 262144)").create("send_buffer");
+		Option sendBatch = OptionBuilder.withArgName("send_batch").hasArg()
+				.withDescription("maximum number of trades per kafka send (default 500)").create("send_batch");
+		Option linger = OptionBuilder.withArgName("linger_ms").hasArg()
+				.withDescription("milliseconds to wait for a send batch to fill (default 5)").create("linger_ms");
+		Option speed = OptionBuilder.withArgName("speed").hasArg()
+				.withDescription("replay speed multiplier for file mode, e.g. 1, 10 or max (default 1)").create("speed");
+		Option partitions = OptionBuilder.withArgName("partitions").hasArg()
+				.withDescription("number of clustering partitions in embedded mode (default 2)").create("partitions");
+		Option clusterfile = OptionBuilder.withArgName("clusterfile").hasArg()
+				.withDescription("file to which clusters are written in embedded mode").create("clusterfile");
+		Option redisFlush = OptionBuilder.withArgName("redis_flush_ms").hasArg()
+				.withDescription("interval in milliseconds at which aggregate volume is flushed to redis in embedded mode (default 1000)").create("redis_flush_ms");
+		Option tickerWeights = OptionBuilder.withArgName("ticker_weights").hasArg()
+				.withDescription("file of TICKER,VOLUME lines used to balance hot tickers across partitions").create("ticker_weights");
 		options.addOption(filename);
 		options.addOption(outfile);
 		options.addOption("stdin", false, "read in the list of trades from standard input");
-		options.addOption("batch", false, "read the trades from a file in batch mode");
+		options.addOption("batch", false, "read the trades from a file in batch mode, same as -speed max");
 		options.addOption("timeseries", false, "enable time series subscription to a set of contracts");
 		options.addOption("use_current_time", false, "update the time stamp of the trades to the current time, useful for timing the latency");
 		options.addOption(contracts);
 		options.addOption(fromtime);
+		options.addOption(tickerWeights);
+		options.addOption(speed);
+		options.addOption(sendBuffer);
+		options.addOption(sendBatch);
+		options.addOption(linger);
 		options.addOption("realtime", false, "real-time subscription (default)");
+		options.addOption("embedded", false, "cluster the trades in this process instead of sending them to kafka");
+		options.addOption(partitions);
+		options.addOption(clusterfile);
+		options.addOption("update_redis", false, "update redis with aggregate volume numbers in embedded mode, like TradesConsumer -update_redis. Only one process should be doing this at a time");
+		options.addOption(redisFlush);
 		
 		CommandLineParser parser = new BasicParser();
 		try{
 			canceledOut = new PrintWriter(new BufferedWriter(new FileWriter("correction_trades.log", true)));
 			CommandLine cmd = parser.parse(options, args);
+			if(cmd.hasOption("send_buffer"))
+				sendBufferSize = Integer.parseInt(cmd.getOptionValue("send_buffer"));
+			if(cmd.hasOption("send_batch"))
+				sendBatchSize = Integer.parseInt(cmd.getOptionValue("send_batch"));
+			if(cmd.hasOption("linger_ms"))
+				lingerMillis = Long.parseLong(cmd.getOptionValue("linger_ms"));
+			// replays wait for room in a full buffer or ring, the real-time feed drops instead of stalling
+			boolean replay = cmd.hasOption("stdin") || cmd.hasOption("file") || cmd.hasOption("timeseries");
+			if(cmd.hasOption("embedded")){
+				configureEmbedded(Integer.parseInt(cmd.getOptionValue("partitions", "2")), cmd.getOptionValue("ticker_weights"),
+						cmd.getOptionValue("clusterfile"), replay, cmd.hasOption("update_redis"), Long.parseLong(cmd.getOptionValue("redis_flush_ms", "1000")));
+			}
+			else
+				configureProducer(cmd.getOptionValue("ticker_weights"), replay);
 
 			if(cmd.hasOption("outfile")){
-        		tradeOut = new PrintWriter(new BufferedWriter(new FileWriter(cmd.getOptionValue("outfile"), true)));
-			}			
+				journal = new TradeJournal.Writer(cmd.getOptionValue("outfile")).closeOnExit();
+			}
 			if(cmd.hasOption("stdin")){
+				mode = Mode.FILE;
 				Scanner scanner = new Scanner(System.in);
 				new DXFeedStreamAll(scanner);
+				sender.drain();
+				if(journal != null)
+					journal.close();
 			}
 			else if(cmd.hasOption("file")){
+				mode = Mode.FILE;
 				updateTradeTime = cmd.hasOption("use_current_time");
-				new DXFeedStreamAll(cmd.getOptionValue("file"), cmd.hasOption("batch"));
+				double replaySpeed = cmd.hasOption("batch") ? 0 : ReplayScheduler.parseSpeed(cmd.getOptionValue("speed", "1"));
+				new DXFeedStreamAll(cmd.getOptionValue("file"), replaySpeed);
+				sender.drain();
+				if(journal != null)
+					journal.close();
 			}
 			else if(cmd.hasOption("timeseries")){
+				mode = Mode.TIMESERIES;
 				if(!cmd.hasOption("contracts") || !cmd.hasOption("fromtime")){
 					System.out.println("must include 'contracts' and 'fromtime' args when in time series mode");
 					System.exit(1);
@@ -100,17 +167,20 @@ public class DXFeedStreamAll{
 				new DXFeedStreamAll(cmd.getOptionValue("contracts").split(","), Long.parseLong(cmd.getOptionValue("fromtime")));
 			}
 			else{
+				mode = Mode.REALTIME;
 				new DXFeedStreamAll();
 			}
 		}catch(ParseException e){
 			System.out.println("error parsing arguments");
 			HelpFormatter formatter = new HelpFormatter();
-			formatter.printHelp("<-stdin> | <-f FILENAME -batch> | <-timeseries -contracts CONTRACTS -fromtime TIMESTAMP> | <--realtime> | <--use_current_time>", options);
+			formatter.printHelp("<-stdin> | <-f FILENAME <-batch | -speed MULTIPLIER>> | <-timeseries -contracts CONTRACTS -fromtime TIMESTAMP> | <--realtime> | <--use_current_time> <-ticker_weights FILE> <-send_buffer N> <-send_batch N> <-linger_ms MILLIS> <--embedded <-partitions N> <-clusterfile FILE> <--update_redis> <-redis_flush_ms MILLIS>>", options);
 			System.exit(1);
 		} catch (IOException e) {
 			System.out.println("Unable to open file for writing trades");
 			e.printStackTrace();
 			System.exit(1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 	
@@ -118,7 +188,7 @@ public class DXFeedStreamAll{
 	public DXFeedStreamAll(Scanner in){
 		String line;
 		TradeListener listener = new TradeListener();
-		while((line = in.nextLine()) != "quit"){
+		while(in.hasNextLine() && !(line = in.nextLine()).equals("quit")){
 			TimeAndSale t = DXFeedUtils.parseTrade(line);
 			List<TimeAndSale> tns = new ArrayList<TimeAndSale>();
 			tns.add(t);
@@ -126,35 +196,34 @@ public class DXFeedStreamAll{
 		}
 	}
 	
-	// constructor for file based streaming
-	public DXFeedStreamAll(String filename, boolean isBatch){
+	// constructor for replaying a trade journal, trades sharing a millisecond are handed to the listener together
+	public DXFeedStreamAll(String filename, double speed){
+		if(!TradeJournal.isJournal(filename)){
+			System.out.println(filename + " is not a trade journal, tab separated trade files can be converted with TradeJournal convert");
+			return;
+		}
 		try{
 			TradeListener listener = new TradeListener();
-			BufferedReader reader = new BufferedReader(new FileReader(filename));
-			String nextLine;
-			TimeAndSale t = DXFeedUtils.parseTrade(reader.readLine());
-			while((nextLine = reader.readLine()) != null || t != null){
-				if(t != null){
-					List<TimeAndSale> tns = new ArrayList<TimeAndSale>();
-					tns.add(t);
+			ReplayScheduler scheduler = new ReplayScheduler(speed);
+			TradeJournal.Reader reader = TradeJournal.openReader(filename);
+			List<TimeAndSale> tns = new ArrayList<TimeAndSale>();
+			long batchTime = 0;
+			while(reader.next()){
+				long time = reader.getTime();
+				if(!tns.isEmpty() && time != batchTime){
+					scheduler.awaitEventTime(batchTime);
 					listener.processTrades(tns);
-					TimeAndSale nextTrade = DXFeedUtils.parseTrade(nextLine);
-					if(!isBatch && nextTrade != null){
-						// wait the appropriate amount of time in between iterations based on the timestamp
-						long currentTime = System.currentTimeMillis();
-						while(System.currentTimeMillis() - currentTime < nextTrade.getTime() - t.getTime());
-					}
-					t = nextTrade;
-				}
-				else{
-					t = DXFeedUtils.parseTrade(nextLine);
+					tns = new ArrayList<TimeAndSale>();
 				}
+				batchTime = time;
+				tns.add(reader.toTrade());
+			}
+			if(!tns.isEmpty()){
+				scheduler.awaitEventTime(batchTime);
+				listener.processTrades(tns);
 			}
-			
 			reader.close();
-		}
-		catch(FileNotFoundException e){
-			System.out.println("Could not find " + filename);
+			System.out.println(scheduler);
 		}
 		catch(IOException e){
 			e.printStackTrace();
@@ -184,21 +253,28 @@ public class DXFeedStreamAll{
 	
 	public class TradeListener implements DXFeedEventListener<TimeAndSale>{
 		public void processTrades(List<TimeAndSale> events){
-			List<KeyedMessage<byte[], byte[]>> trades = new ArrayList<KeyedMessage<byte[], byte[]>>();
+			long receivedAt = System.currentTimeMillis();
 			for (TimeAndSale event : events){
-				event.setEventSymbol(DXFeedUtils.normalizeContract(event.getEventSymbol()));
+				OptionSymbol option = OptionSymbol.of(event.getEventSymbol());
+				event.setEventSymbol(option.normalized);
 				if(updateTradeTime){
 					// set time of trade to current time for measuring latency purposes
 					event.setTime(System.currentTimeMillis());
 				}
-				String ticker = DXFeedUtils.getTicker(event.getEventSymbol());
-				if(tradeOut != null){
-		    		tradeOut.println(DXFeedUtils.serializeTrade(event));
-		    		//flush out trades and canceled file every so often
-		    		if(counter % 200 == 0){
-		    			tradeOut.flush();
+				else if(mode == Mode.REALTIME){
+					Latency.PRINT_TO_RECEIVE.recordMillis(receivedAt - event.getTime());
+				}
+				String ticker = option.root;
+				if(journal != null){
+					try{
+						journal.append(event);
+					}
+					catch(IOException e){
+						e.printStackTrace();
+					}
+		    		//flush out the canceled file every so often
+		    		if(counter % 200 == 0)
 		    			canceledOut.flush();
-		    		}
 				}
 				if(event.isCancel() || event.isCorrection()){
 					// canceled or correction event type
@@ -207,18 +283,10 @@ public class DXFeedStreamAll{
 				// we have no interest in parsing trades that are not during normal market hours or are mini contracts
 				if(!(updateTradeTime || DXFeedUtils.isDuringMarketHours(event.getTime())) || DXFeedUtils.isMiniContract(ticker))
 					continue;
-		        ByteArrayOutputStream b = new ByteArrayOutputStream();
-				try{
-			        ObjectOutputStream o = new ObjectOutputStream(b);
-			        o.writeObject(event);
-				}
-				catch(IOException e){
-					e.printStackTrace();
-				}
-				System.out.println(++counter + "\t" + event);
-				trades.add(new KeyedMessage<byte[], byte[]>(TOPIC_NAME, ticker.getBytes(), b.toByteArray()));
+				++counter;
+				// hand off to the sender thread or the embedded pipeline, in real-time mode this never blocks the dxfeed notification thread
+				sender.send(ticker.getBytes(), event, receivedAt);
 			}
-			producer.send(trades);
 		}
 		public void eventsReceived(List<TimeAndSale> events) {
 			processTrades(events);
@@ -1,52 +1,66 @@
 package quotail;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
-import kafka.producer.KeyedMessage;
-
 import org.apache.commons.cli.*;
 
+import com.dxfeed.event.IndexedEvent;
 import com.dxfeed.event.market.TimeAndSale;
-import com.dxfeed.promise.Promise;
+import com.dxfeed.api.DXEndpoint;
 import com.dxfeed.api.DXFeed;
 import com.dxfeed.api.DXFeedEventListener;
 import com.dxfeed.api.DXFeedTimeSeriesSubscription;
-import com.dxfeed.event.market.TimeAndSaleType;
 
 
 public class DXFeedSummary {
+	static final int TYPE_COLUMN = 0;
 	static final int SYMBOL_COLUMN = 1;
 	static final int MULTIPLIER_COLUMN = 7;
 	static final int TICKER_COLUMN = 8;
-	static PrintWriter fileOut;
 	static long fromTime;
+	static final long POLL_INTERVAL = 100;
+	static final long IDLE_TIMEOUT = 10000;
+	static final long REPORT_INTERVAL = 10000;
 	
 	public static void main(String[] args){
 		Options options = new Options();
 		Option filename = OptionBuilder.withArgName("file").hasArg()
-				.withDescription("the instrument profile file path from which to read trades")
+				.withDescription("the instrument profile file path (plain, .zip or .gz) from which to read contracts")
 				.create("file");
 		Option date = OptionBuilder.withArgName("date").hasArg()
 				.withDescription("[YYYYMMDD] date for which we want data")
 				.create("date");
 		Option outfile = OptionBuilder.withArgName("outfile").hasArg()
-				.withDescription("file path to which to write trades")
+				.withDescription("trade journal directory to which to write trades")
 				.create("outfile");
+		Option tickers = OptionBuilder.withArgName("tickers").hasArg()
+				.withDescription("comma separated list of root tickers to fetch, all tickers if omitted")
+				.create("tickers");
+		Option shards = OptionBuilder.withArgName("shards").hasArg()
+				.withDescription("number of subscriptions pulling history in parallel, each writing its own journal (default 4)")
+				.create("shards");
+		Option inFlight = OptionBuilder.withArgName("in_flight").hasArg()
+				.withDescription("maximum number of symbols subscribed at once per shard (default 500)")
+				.create("in_flight");
+		Option address = OptionBuilder.withArgName("address").hasArg()
+				.withDescription("dxfeed address to connect a separate endpoint per shard to, the default feed is shared otherwise")
+				.create("address");
 		options.addOption(filename);
+		options.addOption(shards);
+		options.addOption(inFlight);
+		options.addOption(address);
+		options.addOption(tickers);
 		options.addOption(date);
 		options.addOption(outfile);
 		CommandLineParser parser = new BasicParser();
@@ -57,23 +71,26 @@ public class DXFeedSummary {
 				String outFileName = "trades_" + cmd.getOptionValue("date");
 				if(cmd.hasOption("outfile"))
 					outFileName = cmd.getOptionValue("outfile");
-        		fileOut = new PrintWriter(new BufferedWriter(new FileWriter(outFileName)));
 				instrumentFile = cmd.getOptionValue("file");
 				DateFormat df = new SimpleDateFormat("yyyyMMdd");
 				fromTime = df.parse(cmd.getOptionValue("date")).getTime();
-				BufferedReader reader = new BufferedReader(new FileReader(instrumentFile));
+				IpfScanner scanner = IpfScanner.open(instrumentFile);
+				// we're only interested in non-mini options. other instrument types have their own column layout
+				scanner.filter(TYPE_COLUMN, "OPTION");
+				scanner.filter(MULTIPLIER_COLUMN, "100");
+				if(cmd.hasOption("tickers"))
+					scanner.filter(TICKER_COLUMN, cmd.getOptionValue("tickers").split(","));
 				// it's going to be a very big list, might as well allocate up front
-				List<String> symbols = new ArrayList<String>();
+				List<String> symbols = new ArrayList<String>(1 << 19);
 
 				// discard first line with column headers
-				String line = reader.readLine();
-				while( (line = reader.readLine()) != null){
-					String[] columns = line.split(",");
-					if(columns[MULTIPLIER_COLUMN].equals("100")){ // we're only interested in non-mini options
-						symbols.add(columns[SYMBOL_COLUMN]);
-					}
-				}
-				new DXFeedSummary(symbols);
+				scanner.skip();
+				while(scanner.next())
+					symbols.add(scanner.column(SYMBOL_COLUMN));
+				scanner.close();
+				new DXFeedSummary(symbols, Integer.parseInt(cmd.getOptionValue("shards", "4")),
+						Integer.parseInt(cmd.getOptionValue("in_flight", "500")), cmd.getOptionValue("address"), outFileName);
+				System.exit(0);
 			}
 			else{
 				System.out.println("instrument profile path must be specified with -f option");
@@ -82,44 +99,148 @@ public class DXFeedSummary {
 		}catch(ParseException e){
 			System.out.println("error parsing arguments");
 			HelpFormatter formatter = new HelpFormatter();
-			formatter.printHelp("<-f FILENAME>", options);
+			formatter.printHelp("<-f FILENAME> <-date YYYYMMDD> <-outfile JOURNAL> <-tickers TICKERS> <-shards N> <-in_flight N> <-address ADDRESS>", options);
 			System.exit(1);
 		}
 		catch(FileNotFoundException e){
 			System.out.println("Cannot find file " + instrumentFile);
 		}catch(IOException e){ e.printStackTrace(); }
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
 		catch (java.text.ParseException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 	}
 	
-	public DXFeedSummary(List<String> symbols){
-		DXFeed feed = DXFeed.getInstance();
-		DXFeedTimeSeriesSubscription<TimeAndSale> timeSeriesSub = feed.createTimeSeriesSubscription(TimeAndSale.class);
-		timeSeriesSub.addEventListener(new TradeListener());
-		timeSeriesSub.setFromTime(fromTime);
-//		String[] contracts = {".TSLA150918C260"};
-		System.out.println("NUMBER OF SYMBOLS " + symbols.size());
-		timeSeriesSub.addSymbols(symbols);
+	// one shard per subscription, each with its own share of the symbols, journal and (with an address) endpoint
+	public DXFeedSummary(List<String> symbols, int numShards, int inFlight, String address, String outDir) throws IOException, InterruptedException{
+		System.out.println("NUMBER OF SYMBOLS " + symbols.size() + " over " + numShards + " shards, " + inFlight + " in flight per shard");
+		Shard[] shards = new Shard[numShards];
+		for(int i = 0; i < numShards; ++i){
+			List<String> shardSymbols = new ArrayList<String>(symbols.size() / numShards + 1);
+			for(int j = i; j < symbols.size(); j += numShards)
+				shardSymbols.add(symbols.get(j));
+			// a single shard keeps writing straight into the output journal
+			String shardDir = numShards == 1 ? outDir : new File(outDir, "shard" + i).getPath();
+			shards[i] = new Shard(i, shardSymbols, inFlight, address, new TradeJournal.Writer(shardDir));
+		}
+		long start = System.currentTimeMillis();
+		Thread[] threads = new Thread[numShards];
+		for(int i = 0; i < numShards; ++i){
+			threads[i] = new Thread(shards[i], "backfill-shard-" + i);
+			threads[i].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		long trades = 0;
+		for(Shard shard : shards)
+			trades += shard.trades.get();
+		System.out.println(String.format("backfilled %d trades for %d symbols in %d s", trades, symbols.size(), (System.currentTimeMillis() - start) / 1000));
 	}
-	
-	public class TradeListener implements DXFeedEventListener<TimeAndSale>{
-		long toTime = fromTime + 24*60*60*1000;
-		int counter = 0;
+
+	// pulls the history of its symbols through one time series subscription, keeping at most inFlight of them
+	// subscribed at a time. a symbol is done once its snapshot has been delivered (SNAPSHOT_END) or nothing
+	// arrived for it for IDLE_TIMEOUT, it is then unsubscribed and the next symbol takes its place. history is
+	// delivered newest first, so prints after the requested day are skipped rather than used to detect the end
+	class Shard implements Runnable, DXFeedEventListener<TimeAndSale>{
+		final int id;
+		final List<String> symbols;
+		final int inFlight;
+		final TradeJournal.Writer journal;
+		final DXEndpoint endpoint;
+		final DXFeedTimeSeriesSubscription<TimeAndSale> subscription;
+		// subscribed symbol => wall clock time of its subscription or latest event
+		final ConcurrentHashMap<String, Long> active = new ConcurrentHashMap<String, Long>();
+		final Set<String> completed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicLong trades = new AtomicLong();
+		final long toTime = fromTime + 24*60*60*1000;
+		int next;
+		int done;
+
+		Shard(int id, List<String> symbols, int inFlight, String address, TradeJournal.Writer journal){
+			this.id = id;
+			this.symbols = symbols;
+			this.inFlight = inFlight;
+			this.journal = journal;
+			// separate endpoints spread the shards over separate connections
+			endpoint = address == null ? null : DXEndpoint.create().connect(address);
+			DXFeed feed = endpoint == null ? DXFeed.getInstance() : endpoint.getFeed();
+			subscription = feed.createTimeSeriesSubscription(TimeAndSale.class);
+			subscription.setFromTime(fromTime);
+			subscription.addEventListener(this);
+		}
+
+		public void run(){
+			long nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+			try{
+				while(next < symbols.size() || !active.isEmpty()){
+					long now = System.currentTimeMillis();
+					List<String> finished = new ArrayList<String>();
+					for(Map.Entry<String, Long> entry : active.entrySet()){
+						if(completed.remove(entry.getKey()) || now - entry.getValue() > IDLE_TIMEOUT)
+							finished.add(entry.getKey());
+					}
+					if(!finished.isEmpty()){
+						subscription.removeSymbols(finished);
+						for(String symbol : finished)
+							active.remove(symbol);
+						done += finished.size();
+					}
+					// rotate the next symbols in
+					List<String> added = new ArrayList<String>();
+					while(next < symbols.size() && active.size() < inFlight){
+						String symbol = symbols.get(next++);
+						active.put(symbol, now);
+						added.add(symbol);
+					}
+					if(!added.isEmpty())
+						subscription.addSymbols(added);
+					if(now >= nextReport){
+						System.out.println(String.format("shard %d: %d/%d symbols done, %d in flight, %d trades", id, done, symbols.size(), active.size(), trades.get()));
+						nextReport = now + REPORT_INTERVAL;
+					}
+					Thread.sleep(POLL_INTERVAL);
+				}
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			finally{
+				subscription.close();
+				if(endpoint != null)
+					endpoint.close();
+				try{
+					journal.close();
+				}
+				catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+			System.out.println(String.format("shard %d finished: %d symbols, %d trades", id, done, trades.get()));
+		}
+
 		public void eventsReceived(List<TimeAndSale> events) {
+			long now = System.currentTimeMillis();
 			for (TimeAndSale event : events){
-				if(event.getTime() < toTime){
-					String eventSymbol = DXFeedUtils.normalizeContract(event.getEventSymbol());
-					event.setEventSymbol(eventSymbol);
-					fileOut.println(DXFeedUtils.serializeTrade(event));
-					System.out.println(event);
-				}
-				if(counter++ % 1000 == 0){
-					fileOut.flush();
+				String symbol = event.getEventSymbol();
+				// late events of a symbol that was already rotated out are dropped
+				if(active.replace(symbol, now) == null)
+					continue;
+				if((event.getEventFlags() & IndexedEvent.SNAPSHOT_END) != 0)
+					completed.add(symbol);
+				if(event.getTime() >= fromTime && event.getTime() < toTime && event.getSize() > 0){
+					event.setEventSymbol(DXFeedUtils.normalizeContract(symbol));
+					try{
+						journal.append(event);
+						trades.incrementAndGet();
+					}
+					catch(IOException e){
+						e.printStackTrace();
+					}
 				}
 			}
-//			System.out.println(counter);
 		}
 	}
-}
\ No newline at end of file
+}
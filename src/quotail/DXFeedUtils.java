@@ -54,41 +54,18 @@ public class DXFeedUtils {
     
     // expects a normalized contract symbol of the form VXX150626C00019000, returns VXX
     public static String getTicker(String contract){
-    	if(contract.charAt(0) == '.'){
-    		contract = normalizeContract(contract);
-    	}
-    	return contract.substring(0, contract.length() - 15);
+    	return OptionSymbol.of(contract).root;
     }
 
     // take something like .AAC150821C22.5 and convert to AAC150821C00022500
     public static String normalizeContract(String symbol){
     	if(symbol.charAt(0) != '.') return symbol;
-    	int lastC = symbol.lastIndexOf('C');
-    	int lastP = symbol.lastIndexOf('P');
-    	int lastIndex = Math.max(lastP, lastC) + 1;
-    	String normalizedSymbol = symbol.substring(1, lastIndex);
-    	String[] strike = symbol.substring(lastIndex).split("\\.");
-    	String decimal = "000";
-    	if(strike.length > 1){
-    		decimal = strike[1];
-    		for(; decimal.length() < 3; decimal += "0");
-    	}
-    	return String.format("%s%05d%s", normalizedSymbol, Integer.parseInt(strike[0]), decimal);
+    	return OptionSymbol.of(symbol).normalized;
     }
     
     // take something like AAC150821C00022500 to .AAC150821C22.5
     public static String denormalizeContract(String symbol){
-    	symbol = "." + symbol;
-    	int lastC = symbol.lastIndexOf('C');
-    	int lastP = symbol.lastIndexOf('P');
-    	int lastIndex = Math.max(lastP, lastC) + 1;
-    	String denormalizedSymbol = symbol.substring(0, lastIndex);
-    	String strike = symbol.substring(lastIndex);
-    	strike = strike.substring(0, 5) + "." + strike.substring(5);
-    	int i = 0, j = strike.length() - 1;
-    	for(; i < strike.length() && strike.charAt(i) == '0'; ++i);
-    	for(; j >= 0 && strike.charAt(j) == '0' || strike.charAt(j) == '.'; --j);
-    	return denormalizedSymbol + strike.substring(i, j+1);
+    	return OptionSymbol.of(symbol).dxfeed;
     }
     
     // check if the trade occurred during normal trading hours
@@ -0,0 +1,28 @@
+package quotail;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+// formats times as the yyyyMMdd prefix of our redis keys. the day of the last time formatted is cached
+// so consecutive trades on the same day only cost two comparisons. not thread safe
+public class DayFormat {
+	private final SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd");
+	private final Calendar calendar = Calendar.getInstance();
+	private String day;
+	private long dayStart, dayEnd;
+
+	public String format(long time){
+		if(day == null || time < dayStart || time >= dayEnd){
+			calendar.setTimeInMillis(time);
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MILLISECOND, 0);
+			dayStart = calendar.getTimeInMillis();
+			calendar.add(Calendar.DATE, 1);
+			dayEnd = calendar.getTimeInMillis();
+			day = df.format(dayStart);
+		}
+		return day;
+	}
+}
@@ -0,0 +1,133 @@
+package quotail;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dxfeed.event.market.TimeAndSale;
+
+// runs the clustering side of TradesConsumer inside the feed process. every partition gets a TradeRing feeding
+// its own ClusterProducer and ClusterConsumer pair, and trades are routed with the same TickerPartitioner as the
+// kafka topic, so a ticker is clustered by the same thread it would be with kafka in between. nothing is
+// serialized and neither kafka nor zookeeper are needed, with a cluster file redis is optional too.
+// with a volume aggregator the aggregate volume hashes are kept up to date in redis like TradesConsumer -update_redis.
+// in real-time mode a full ring drops trades like TradeSender does, replays wait for room instead so a backtest
+// never loses trades
+public class EmbeddedPipeline implements TradeSink {
+	private static final long REPORT_INTERVAL = 10000;
+	private static final long FULL_WAIT_NANOS = 50000;
+
+	private final TickerPartitioner partitioner;
+	private final TradeRing[] rings;
+	private final ClusterConsumer[] consumers;
+	private final Thread[] producerThreads;
+	private final Thread[] consumerThreads;
+	private final boolean blockWhenFull;
+	private final RedisVolumeAggregator volumeAggregator;
+	private Thread volumeAggregatorThread;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong fullWaits = new AtomicLong();
+	private volatile boolean stopped;
+
+	public EmbeddedPipeline(int numPartitions, int ringCapacity, TickerPartitioner partitioner, String clusterFile, boolean blockWhenFull,
+			RedisVolumeAggregator volumeAggregator){
+		this.partitioner = partitioner;
+		this.blockWhenFull = blockWhenFull;
+		this.volumeAggregator = volumeAggregator;
+		rings = new TradeRing[numPartitions];
+		consumers = new ClusterConsumer[numPartitions];
+		producerThreads = new Thread[numPartitions];
+		consumerThreads = new Thread[numPartitions];
+
+		// same shared clustering state as TradesConsumer
+		ConcurrentHashMap<String, Cluster> clusterMap = new ConcurrentHashMap<String, Cluster>(1 << 14, 0.75f, numPartitions * 2);
+		SpreadTracker spreadTracker = new SpreadTracker();
+		for(int i = 0; i < numPartitions; ++i){
+			rings[i] = new TradeRing(ringCapacity);
+			LinkedBlockingDeque<Cluster> clusterQueue = new LinkedBlockingDeque<Cluster>();
+			consumers[i] = new ClusterConsumer(clusterQueue, clusterMap, spreadTracker, clusterFile, false);
+			producerThreads[i] = new Thread(new ClusterProducer(rings[i], i, clusterQueue, clusterMap, spreadTracker, consumers[i], volumeAggregator), "cluster-producer-" + i);
+			consumerThreads[i] = new Thread(consumers[i], "cluster-consumer-" + i);
+		}
+	}
+
+	public EmbeddedPipeline start(){
+		if(volumeAggregator != null){
+			volumeAggregatorThread = new Thread(volumeAggregator, "volume-aggregator");
+			volumeAggregatorThread.start();
+		}
+		for(int i = 0; i < rings.length; ++i){
+			producerThreads[i].start();
+			consumerThreads[i].start();
+		}
+		Thread reporter = new Thread(new Runnable(){
+			public void run(){
+				try{
+					while(!stopped){
+						Thread.sleep(REPORT_INTERVAL);
+						report();
+					}
+				}
+				catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "embedded-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+		return this;
+	}
+
+	public boolean send(byte[] key, TimeAndSale trade, long receivedAt){
+		TradeRing ring = rings[partitioner.partition(key, rings.length)];
+		if(!ring.offer(trade, receivedAt)){
+			if(!blockWhenFull){
+				dropped.incrementAndGet();
+				return false;
+			}
+			fullWaits.incrementAndGet();
+			do{
+				LockSupport.parkNanos(FULL_WAIT_NANOS);
+			}while(!ring.offer(trade, receivedAt));
+		}
+		enqueued.incrementAndGet();
+		return true;
+	}
+
+	// shuts the pipeline down: every ring is consumed, the producers stop and the consumers publish the clusters
+	// that are still pending before they stop too
+	public void drain() throws InterruptedException{
+		for(TradeRing ring : rings)
+			ring.close();
+		for(Thread producer : producerThreads)
+			producer.join();
+		for(ClusterConsumer consumer : consumers)
+			consumer.finish();
+		for(Thread consumer : consumerThreads)
+			consumer.join();
+		// the aggregator flushes what is still pending when it stops
+		if(volumeAggregatorThread != null){
+			volumeAggregatorThread.interrupt();
+			volumeAggregatorThread.join();
+		}
+		stopped = true;
+		report();
+	}
+
+	public long getEnqueued(){ return enqueued.get(); }
+	public long getDropped(){ return dropped.get(); }
+
+	private void report(){
+		StringBuilder depths = new StringBuilder();
+		for(TradeRing ring : rings){
+			if(depths.length() > 0)
+				depths.append(',');
+			depths.append(ring.size());
+		}
+		System.out.println(String.format("embedded pipeline: enqueued %d, dropped %d, waited for room %d times, ring depths [%s] of %d",
+				enqueued.get(), dropped.get(), fullWaits.get(), depths, rings[0].capacity()));
+	}
+}
@@ -0,0 +1,205 @@
+package quotail;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+// streaming reader for instrument profile csv files (plain, .zip or .gz). rows are scanned in place in a
+// char buffer and only split as far as the columns that are filtered on or read, so rows rejected by a
+// filter never become strings. filters are checked in the order they were added, so put the cheapest first.
+// lines starting with '#' and blank lines are skipped.
+//
+//   IpfScanner scanner = IpfScanner.open(file);
+//   scanner.filter(TYPE_COLUMN, "OPTION");
+//   scanner.filter(MULTIPLIER_COLUMN, "100");
+//   while(scanner.next())
+//       symbols.add(scanner.column(SYMBOL_COLUMN));
+//   scanner.close();
+public class IpfScanner {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Reader reader;
+	private char[] buf = new char[BUFFER_SIZE];
+	private int bufEnd;             // end of valid chars in buf
+	private int lineStart, lineEnd; // current row, lineEnd excludes the line terminator
+	private int nextLine;           // start of the row after the current one
+	private boolean eof;
+
+	// bounds of the columns of the current row that have been split so far
+	private int[] fieldStart = new int[16];
+	private int[] fieldEnd = new int[16];
+	private int fieldCount;
+
+	private static class Filter {
+		final int column;
+		final char[][] values;
+		Filter(int column, char[][] values){
+			this.column = column;
+			this.values = values;
+		}
+	}
+	private final List<Filter> filters = new ArrayList<Filter>();
+
+	public IpfScanner(Reader reader){
+		this.reader = reader;
+	}
+
+	public static IpfScanner open(String file) throws IOException{
+		InputStream in = new FileInputStream(file);
+		String lower = file.toLowerCase();
+		if(lower.endsWith(".zip")){
+			ZipInputStream zip = new ZipInputStream(in);
+			if(zip.getNextEntry() == null){
+				zip.close();
+				throw new IOException("empty zip file " + file);
+			}
+			in = zip;
+		}
+		else if(lower.endsWith(".gz")){
+			in = new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		return new IpfScanner(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	// only return rows whose column equals one of the values
+	public IpfScanner filter(int column, String... values){
+		char[][] chars = new char[values.length][];
+		for(int i = 0; i < values.length; ++i)
+			chars[i] = values[i].toCharArray();
+		filters.add(new Filter(column, chars));
+		return this;
+	}
+
+	// discard the next row regardless of filters, used for files with a plain csv header line
+	public boolean skip() throws IOException{
+		return readLine();
+	}
+
+	// advance to the next row that passes every filter
+	public boolean next() throws IOException{
+		while(readLine()){
+			if(lineStart == lineEnd || buf[lineStart] == '#')
+				continue;
+			if(matches())
+				return true;
+		}
+		return false;
+	}
+
+	// the column of the current row, or null if the row has fewer columns
+	public String column(int column){
+		if(!split(column))
+			return null;
+		int start = fieldStart[column], end = fieldEnd[column];
+		if(end - start >= 2 && buf[start] == '"' && buf[end - 1] == '"')
+			return new String(buf, start + 1, end - start - 2).replace("\"\"", "\"");
+		return new String(buf, start, end - start);
+	}
+
+	// compare a column of the current row without creating a string
+	public boolean columnEquals(int column, char[] value){
+		if(!split(column))
+			return false;
+		int start = fieldStart[column], end = fieldEnd[column];
+		if(end - start >= 2 && buf[start] == '"' && buf[end - 1] == '"'){
+			++start;
+			--end;
+		}
+		if(end - start != value.length)
+			return false;
+		for(int i = 0; i < value.length; ++i){
+			if(buf[start + i] != value[i])
+				return false;
+		}
+		return true;
+	}
+
+	public void close() throws IOException{
+		reader.close();
+	}
+
+	private boolean matches(){
+		for(Filter filter : filters){
+			boolean matched = false;
+			for(char[] value : filter.values){
+				if(columnEquals(filter.column, value)){
+					matched = true;
+					break;
+				}
+			}
+			if(!matched)
+				return false;
+		}
+		return true;
+	}
+
+	// split the current row up to and including the column. commas inside quotes do not separate columns
+	private boolean split(int column){
+		if(column >= fieldStart.length){
+			int size = Math.max(column + 1, fieldStart.length * 2);
+			fieldStart = Arrays.copyOf(fieldStart, size);
+			fieldEnd = Arrays.copyOf(fieldEnd, size);
+		}
+		while(fieldCount <= column){
+			int pos = fieldCount == 0 ? lineStart : fieldEnd[fieldCount - 1] + 1;
+			if(pos > lineEnd)
+				return false;
+			fieldStart[fieldCount] = pos;
+			boolean quoted = false;
+			while(pos < lineEnd && (quoted || buf[pos] != ',')){
+				if(buf[pos] == '"')
+					quoted = !quoted;
+				++pos;
+			}
+			fieldEnd[fieldCount++] = pos;
+		}
+		return true;
+	}
+
+	// find the next line in the buffer, refilling it as needed
+	private boolean readLine() throws IOException{
+		fieldCount = 0;
+		int pos = nextLine;
+		while(true){
+			for(; pos < bufEnd; ++pos){
+				if(buf[pos] == '\n'){
+					lineStart = nextLine;
+					lineEnd = pos > lineStart && buf[pos - 1] == '\r' ? pos - 1 : pos;
+					nextLine = pos + 1;
+					return true;
+				}
+			}
+			if(eof){
+				if(nextLine == bufEnd)
+					return false;
+				// last line without a terminator
+				lineStart = nextLine;
+				lineEnd = bufEnd;
+				nextLine = bufEnd;
+				return true;
+			}
+			// move the partial line to the front of the buffer, growing it if the line fills the whole buffer
+			int partial = bufEnd - nextLine;
+			if(partial == buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			else
+				System.arraycopy(buf, nextLine, buf, 0, partial);
+			nextLine = 0;
+			pos = partial;
+			bufEnd = partial;
+			int read = reader.read(buf, bufEnd, buf.length - bufEnd);
+			if(read < 0)
+				eof = true;
+			else
+				bufEnd += read;
+		}
+	}
+}
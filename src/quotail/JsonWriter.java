@@ -0,0 +1,258 @@
+package quotail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// minimal streaming json emitter writing ascii straight into a reusable byte buffer. commas are inserted
+// automatically and prices with up to 4 decimals are written without going through Double.toString.
+// use pooled() on the cluster path so every thread reuses one buffer, and hand the same bytes to every sink
+//
+//   JsonWriter json = JsonWriter.pooled();
+//   json.beginObject().name("qty").value(cluster.quantity).endObject();
+//   byte[] message = json.toByteArray();
+public class JsonWriter {
+	private static final int INITIAL_SIZE = 1024;
+	// pooled buffers that grew past this are dropped instead of being kept around
+	private static final int MAX_POOLED_SIZE = 1 << 20;
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private static final ThreadLocal<JsonWriter> pool = new ThreadLocal<JsonWriter>(){
+		protected JsonWriter initialValue(){
+			return new JsonWriter();
+		}
+	};
+
+	private byte[] buf = new byte[INITIAL_SIZE];
+	private int length;
+	// whether the next value needs a leading comma
+	private boolean needsComma;
+
+	// the calling thread's writer, emptied
+	public static JsonWriter pooled(){
+		JsonWriter writer = pool.get();
+		if(writer.buf.length > MAX_POOLED_SIZE)
+			writer.buf = new byte[INITIAL_SIZE];
+		return writer.reset();
+	}
+
+	public JsonWriter reset(){
+		length = 0;
+		needsComma = false;
+		return this;
+	}
+
+	public JsonWriter beginObject(){
+		return open('{');
+	}
+
+	public JsonWriter endObject(){
+		return close('}');
+	}
+
+	public JsonWriter beginArray(){
+		return open('[');
+	}
+
+	public JsonWriter endArray(){
+		return close(']');
+	}
+
+	public JsonWriter name(String name){
+		value(name);
+		ensure(1);
+		buf[length++] = ':';
+		needsComma = false;
+		return this;
+	}
+
+	public JsonWriter value(String s){
+		if(s == null)
+			return nullValue();
+		separate();
+		ensure(s.length() + 2);
+		buf[length++] = '"';
+		for(int i = 0; i < s.length(); ++i){
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\'){
+				ensure(2 + s.length() - i);
+				buf[length++] = '\\';
+				buf[length++] = (byte)c;
+			}
+			else if(c < 0x20 || c > 0x7e){
+				ensure(6 + s.length() - i);
+				buf[length++] = '\\';
+				buf[length++] = 'u';
+				buf[length++] = HEX[(c >> 12) & 0xf];
+				buf[length++] = HEX[(c >> 8) & 0xf];
+				buf[length++] = HEX[(c >> 4) & 0xf];
+				buf[length++] = HEX[c & 0xf];
+			}
+			else
+				buf[length++] = (byte)c;
+		}
+		ensure(1);
+		buf[length++] = '"';
+		return this;
+	}
+
+	public JsonWriter value(char c){
+		if(c == '"' || c == '\\' || c < 0x20 || c > 0x7e)
+			return value(String.valueOf(c));
+		separate();
+		ensure(3);
+		buf[length++] = '"';
+		buf[length++] = (byte)c;
+		buf[length++] = '"';
+		return this;
+	}
+
+	public JsonWriter value(long v){
+		separate();
+		writeLong(v);
+		return this;
+	}
+
+	public JsonWriter value(boolean v){
+		separate();
+		return raw(v ? TRUE : FALSE);
+	}
+
+	// same text as StringBuilder.append(double)
+	public JsonWriter value(double v){
+		separate();
+		long scaled = Math.round(v * 10000);
+		if(Math.abs(v) >= 1e-3 && Math.abs(v) < 1e7 && scaled / 10000.0 == v)
+			writeDecimal(scaled);
+		else
+			writeAscii(Double.toString(v));
+		return this;
+	}
+
+	// same text as StringBuilder.append(float), only whole amounts take the fast path since floats
+	// do not round trip through 4 decimals
+	public JsonWriter value(float v){
+		separate();
+		if(Math.abs(v) < 1e7 && v == Math.rint(v))
+			writeDecimal((long)v * 10000);
+		else
+			writeAscii(Float.toString(v));
+		return this;
+	}
+
+	public JsonWriter nullValue(){
+		separate();
+		return raw(NULL);
+	}
+
+	public int length(){ return length; }
+
+	// the buffer backing this writer, valid up to length() until the next write or reset
+	public byte[] buffer(){ return buf; }
+
+	public byte[] toByteArray(){
+		return Arrays.copyOf(buf, length);
+	}
+
+	public void writeTo(OutputStream out) throws IOException{
+		out.write(buf, 0, length);
+	}
+
+	public String toString(){
+		return new String(buf, 0, length, StandardCharsets.US_ASCII);
+	}
+
+	private JsonWriter open(char c){
+		separate();
+		needsComma = false;
+		ensure(1);
+		buf[length++] = (byte)c;
+		return this;
+	}
+
+	private JsonWriter close(char c){
+		needsComma = true;
+		ensure(1);
+		buf[length++] = (byte)c;
+		return this;
+	}
+
+	private void separate(){
+		if(needsComma){
+			ensure(1);
+			buf[length++] = ',';
+		}
+		needsComma = true;
+	}
+
+	private JsonWriter raw(byte[] bytes){
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buf, length, bytes.length);
+		length += bytes.length;
+		return this;
+	}
+
+	private void writeAscii(String s){
+		ensure(s.length());
+		for(int i = 0; i < s.length(); ++i)
+			buf[length++] = (byte)s.charAt(i);
+	}
+
+	private void writeLong(long v){
+		if(v == Long.MIN_VALUE){
+			writeAscii(Long.toString(v));
+			return;
+		}
+		ensure(20);
+		if(v < 0){
+			buf[length++] = '-';
+			v = -v;
+		}
+		int start = length;
+		do{
+			buf[length++] = (byte)('0' + v % 10);
+			v /= 10;
+		}while(v != 0);
+		reverse(start, length - 1);
+	}
+
+	// write a value scaled by 10^4 with at least one and at most four decimals, e.g. 12500 => 1.25, 10000 => 1.0
+	private void writeDecimal(long scaled){
+		if(scaled < 0){
+			ensure(1);
+			buf[length++] = '-';
+			scaled = -scaled;
+		}
+		writeLong(scaled / 10000);
+		int fraction = (int)(scaled % 10000);
+		ensure(5);
+		buf[length++] = '.';
+		int digits = 4;
+		while(digits > 1 && fraction % 10 == 0){
+			fraction /= 10;
+			--digits;
+		}
+		for(int i = digits - 1; i >= 0; --i){
+			buf[length + i] = (byte)('0' + fraction % 10);
+			fraction /= 10;
+		}
+		length += digits;
+	}
+
+	private void reverse(int i, int j){
+		while(i < j){
+			byte tmp = buf[i];
+			buf[i++] = buf[j];
+			buf[j--] = tmp;
+		}
+	}
+
+	private void ensure(int n){
+		if(length + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + n));
+	}
+}
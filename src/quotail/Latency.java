@@ -0,0 +1,77 @@
+package quotail;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// per stage latency of a trade on its way from the feed to a published cluster. DXFeedStreamAll records the
+// stages up to the kafka send, the receive and send times travel with the trade in the kafka message, and
+// TradesConsumer records the rest. event times are never touched. every stage is registered over JMX as
+// quotail:type=Latency,stage=NAME and a summary of the stages with any values is logged every interval
+//   print_to_receive    exchange time of the trade to the feed handing it to us (real-time mode only)
+//   receive_to_send     waiting in the send buffer of DXFeedStreamAll
+//   send                producer.send of a batch
+//   send_to_decode      kafka transit, between the two processes so subject to clock skew between hosts
+//   decode_to_cluster   ClusterProducer work per trade, from decoding to the trade being in a cluster
+//   cluster_wait        cluster creation to maturation
+//   mature_to_publish   maturation to the cluster or its spread being published
+//   receive_to_publish  feed receive of the first trade of a cluster to its publication
+public class Latency {
+	static final long REPORT_INTERVAL = 10000;
+
+	public static final LatencyStage PRINT_TO_RECEIVE = new LatencyStage("print_to_receive");
+	public static final LatencyStage RECEIVE_TO_SEND = new LatencyStage("receive_to_send");
+	public static final LatencyStage SEND = new LatencyStage("send");
+	public static final LatencyStage SEND_TO_DECODE = new LatencyStage("send_to_decode");
+	public static final LatencyStage DECODE_TO_CLUSTER = new LatencyStage("decode_to_cluster");
+	public static final LatencyStage CLUSTER_WAIT = new LatencyStage("cluster_wait");
+	public static final LatencyStage MATURE_TO_PUBLISH = new LatencyStage("mature_to_publish");
+	public static final LatencyStage RECEIVE_TO_PUBLISH = new LatencyStage("receive_to_publish");
+
+	static final LatencyStage[] STAGES = { PRINT_TO_RECEIVE, RECEIVE_TO_SEND, SEND, SEND_TO_DECODE,
+		DECODE_TO_CLUSTER, CLUSTER_WAIT, MATURE_TO_PUBLISH, RECEIVE_TO_PUBLISH };
+
+	static{
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for(LatencyStage stage : STAGES)
+				server.registerMBean(stage, new ObjectName("quotail:type=Latency,stage=" + stage.getName()));
+		}
+		catch(Exception e){
+			System.out.println("unable to register latency mbeans");
+			e.printStackTrace();
+		}
+		Thread reporter = new Thread(new Runnable(){
+			public void run(){
+				try{
+					while(!Thread.currentThread().isInterrupted()){
+						Thread.sleep(REPORT_INTERVAL);
+						report();
+					}
+				}
+				catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "latency-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	// close the interval of every stage and log a line for the ones that saw any values
+	static void report(){
+		StringBuilder sb = new StringBuilder("latency ms (p50/p99/max count):");
+		boolean any = false;
+		for(LatencyStage stage : STAGES){
+			LatencyHistogram.Snapshot snapshot = stage.roll();
+			if(snapshot.count == 0)
+				continue;
+			any = true;
+			sb.append(String.format(" %s %.2f/%.2f/%.2f %d", stage.getName(), snapshot.percentile(0.5) / 1000.0,
+					snapshot.percentile(0.99) / 1000.0, snapshot.max / 1000.0, snapshot.count));
+		}
+		if(any)
+			System.out.println(sb);
+	}
+}
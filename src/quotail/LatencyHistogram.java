@@ -0,0 +1,89 @@
+package quotail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// lock free log-linear histogram of latencies in microseconds, in the spirit of HdrHistogram. values below 64
+// are counted exactly, above that every power of two is split into 32 buckets, so any recorded value is
+// reported within about 3% of its true value. recording is wait free and safe from any number of threads
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long micros){
+		if(micros < 0)
+			micros = 0;
+		counts.incrementAndGet(index(micros));
+		sum.addAndGet(micros);
+		long current;
+		while(micros > (current = max.get()) && !max.compareAndSet(current, micros));
+	}
+
+	// the counts recorded since the last call, the histogram starts over empty
+	public Snapshot snapshotAndReset(){
+		long[] copy = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; ++i){
+			if(counts.get(i) != 0)
+				copy[i] = counts.getAndSet(i, 0);
+		}
+		long count = 0;
+		for(long c : copy)
+			count += c;
+		return new Snapshot(copy, count, sum.getAndSet(0), max.getAndSet(0));
+	}
+
+	static int index(long v){
+		if(v < 2 * SUB_BUCKETS)
+			return (int)v;
+		int bits = 64 - Long.numberOfLeadingZeros(v);
+		int shift = bits - SUB_BUCKET_BITS - 1;
+		int top = (int)(v >>> shift);
+		return (shift + 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+	}
+
+	// the largest value counted in the bucket
+	static long highestValue(int index){
+		if(index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long top = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	public static class Snapshot {
+		private final long[] counts;
+		public final long count;
+		public final long sum;
+		public final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max){
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public double mean(){
+			return count == 0 ? 0 : (double)sum / count;
+		}
+
+		// value in microseconds at or below which the given fraction (0.99 for p99) of the values fall
+		public long percentile(double fraction){
+			if(count == 0)
+				return 0;
+			long rank = Math.max(1, (long)Math.ceil(fraction * count));
+			long seen = 0;
+			for(int i = 0; i < counts.length; ++i){
+				seen += counts[i];
+				if(seen >= rank)
+					return Math.min(highestValue(i), max);
+			}
+			return max;
+		}
+	}
+}
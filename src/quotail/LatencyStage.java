@@ -0,0 +1,40 @@
+package quotail;
+
+// one stage of the trade to cluster pipeline. values are recorded into a histogram that Latency swaps out
+// every reporting interval, the JMX attributes describe the last completed interval
+public class LatencyStage implements LatencyStageMBean {
+	private final String name;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private volatile LatencyHistogram.Snapshot last = new LatencyHistogram.Snapshot(new long[0], 0, 0, 0);
+	private volatile long totalCount;
+
+	LatencyStage(String name){
+		this.name = name;
+	}
+
+	public void recordMillis(long millis){
+		histogram.record(millis * 1000);
+	}
+
+	public void recordNanos(long nanos){
+		histogram.record(nanos / 1000);
+	}
+
+	// close the current interval
+	LatencyHistogram.Snapshot roll(){
+		LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+		totalCount += snapshot.count;
+		last = snapshot;
+		return snapshot;
+	}
+
+	public String getName(){ return name; }
+	public long getCount(){ return last.count; }
+	public double getMeanMillis(){ return last.mean() / 1000; }
+	public double getP50Millis(){ return last.percentile(0.5) / 1000.0; }
+	public double getP90Millis(){ return last.percentile(0.9) / 1000.0; }
+	public double getP99Millis(){ return last.percentile(0.99) / 1000.0; }
+	public double getP999Millis(){ return last.percentile(0.999) / 1000.0; }
+	public double getMaxMillis(){ return last.max / 1000.0; }
+	public long getTotalCount(){ return totalCount; }
+}
@@ -0,0 +1,14 @@
+package quotail;
+
+// latency of one pipeline stage over the last reporting interval, in milliseconds
+public interface LatencyStageMBean {
+	String getName();
+	long getCount();
+	double getMeanMillis();
+	double getP50Millis();
+	double getP90Millis();
+	double getP99Millis();
+	double getP999Millis();
+	double getMaxMillis();
+	long getTotalCount();
+}
@@ -1,9 +1,8 @@
 package quotail;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -13,122 +12,184 @@ import java.util.concurrent.TimeUnit;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
 
 import org.apache.commons.cli.*;
 
 import com.devexperts.util.DayUtil;
 import com.dxfeed.event.market.Summary;
 import com.dxfeed.promise.Promise;
-import com.dxfeed.promise.Promises;
 import com.dxfeed.api.DXFeed;
 
+// loads the open interest of every contract in the instrument profile into redis hashes of the form
+// yyyyMMdd_TICKER_oi => {AAPL151018C00125000: "1234", ...}
+// a fixed window of summary requests is kept in flight, completed summaries are written out in pipelined
+// batches as they arrive and only the symbols that failed are requested again
 public class LoadOpenInterest {
-	static final int BATCH_SIZE = 1000;
+	static final int TYPE_COLUMN = 0;
 	static final int SYMBOL_COLUMN = 1;
 	static final int MULTIPLIER_COLUMN = 7;
 	static final int TICKER_COLUMN = 8;
 	static final int EXPIRATION = 24*60*60;
-	static HashMap<String, ArrayList<Summary>> contractsMap = new HashMap<String, ArrayList<Summary>>();
+	// number of contracts buffered before they are written to redis
+	static final int REDIS_BATCH_SIZE = 5000;
+	static int window = 2000;
+	static long timeout = 5000;
+	static int retries = 3;
 	private static JedisPool jedisPool = new JedisPool(new JedisPoolConfig(), "localhost");
 	private static DXFeed feed = DXFeed.getInstance();
-	
-	public static void processPromises(List<String> symbols){
-		List<Promise<?>> promises = new ArrayList<Promise<?>>(symbols.size());
-		for(String s : symbols){
-			promises.add(feed.getLastEventPromise(Summary.class, s));
+
+	// redis key => contract => open interest, waiting to be written
+	private static Map<String, Map<String, String>> pendingWrites = new HashMap<String, Map<String, String>>();
+	private static int pendingCount = 0;
+	private static int loadedCount = 0;
+
+	static class Request {
+		final String symbol;
+		final Promise<Summary> promise;
+		final long deadline;
+		Request(String symbol){
+			this.symbol = symbol;
+			this.promise = feed.getLastEventPromise(Summary.class, symbol);
+			this.deadline = System.currentTimeMillis() + timeout;
 		}
-		if (!Promises.allOf(promises).awaitWithoutException(3, TimeUnit.SECONDS)){
-			System.out.println("operation timed out..calling them individually");
-			for(String s : symbols){
-				Promise<?> promise = feed.getLastEventPromise(Summary.class, s);
-				if(promise.awaitWithoutException(200, TimeUnit.MILLISECONDS)){
-					addSummary((Summary)promise.getResult());
-				}
-				else{
-					System.out.println("failed to fetch summary for " + s);
-				}
-			}
+	}
+
+	// request summaries for all the symbols keeping at most window requests in flight. returns the symbols that failed
+	public static List<String> processPromises(List<String> symbols, Jedis jedis){
+		List<String> failed = new ArrayList<String>();
+		ArrayDeque<Request> inFlight = new ArrayDeque<Request>(window);
+		for(String symbol : symbols){
+			while(inFlight.size() >= window)
+				completeHead(inFlight, failed, jedis);
+			inFlight.add(new Request(symbol));
+		}
+		while(!inFlight.isEmpty())
+			completeHead(inFlight, failed, jedis);
+		flush(jedis);
+		return failed;
+	}
+
+	// wait for the oldest request until its deadline, then retire it and every completed request behind it
+	private static void completeHead(ArrayDeque<Request> inFlight, List<String> failed, Jedis jedis){
+		Request head = inFlight.peek();
+		long remaining = head.deadline - System.currentTimeMillis();
+		if(remaining > 0)
+			head.promise.awaitWithoutException(remaining, TimeUnit.MILLISECONDS);
+		complete(inFlight.poll(), failed, jedis);
+		while(!inFlight.isEmpty() && inFlight.peek().promise.isDone())
+			complete(inFlight.poll(), failed, jedis);
+	}
+
+	private static void complete(Request request, List<String> failed, Jedis jedis){
+		if(request.promise.hasResult()){
+			addSummary(request.promise.getResult(), jedis);
 		}
 		else{
-			for(int i = 0; i < promises.size(); ++i){
-				// put the results in their respective ticker bins
-				Summary s = (Summary)promises.get(i).getResult();
-				addSummary(s);
-			}
+			request.promise.cancel();
+			failed.add(request.symbol);
 		}
-		symbols.clear();
 	}
-	
-	// write out the sumamry event to the redis hash
-	public static void addSummary(Summary s){
-		String ticker = DXFeedUtils.getTicker(s.getEventSymbol());
+
+	// buffer the summary event for the redis hash of its ticker and day
+	public static void addSummary(Summary s, Jedis jedis){
+		OptionSymbol option;
 		try{
-			contractsMap.get(ticker).add(s);
+			option = OptionSymbol.of(s.getEventSymbol());
 		}
-		catch(NullPointerException e){
-			System.out.println("error loading ticker");
+		catch(IllegalArgumentException e){
+			System.out.println("error loading ticker " + s.getEventSymbol());
+			return;
 		}
+		String key = "" + DayUtil.getYearMonthDayByDayId(s.getDayId()) + "_" + option.root + "_oi";
+		Map<String, String> oiMap = pendingWrites.get(key);
+		if(oiMap == null)
+			pendingWrites.put(key, oiMap = new HashMap<String, String>());
+		oiMap.put(option.normalized, "" + s.getOpenInterest());
+		if(++pendingCount >= REDIS_BATCH_SIZE)
+			flush(jedis);
 	}
-	
+
+	// write all buffered hashes in a single pipeline
+	static void flush(Jedis jedis){
+		if(pendingCount == 0)
+			return;
+		try{
+			Pipeline pipeline = jedis.pipelined();
+			for(Map.Entry<String, Map<String, String>> entry : pendingWrites.entrySet()){
+				pipeline.hmset(entry.getKey(), entry.getValue());
+				pipeline.expire(entry.getKey(), EXPIRATION);
+			}
+			pipeline.sync();
+			loadedCount += pendingCount;
+			System.out.println(loadedCount + " contracts loaded");
+		}
+		catch(Exception e){
+			System.out.println("error writing open interest to redis");
+			e.printStackTrace();
+		}
+		pendingWrites.clear();
+		pendingCount = 0;
+	}
+
 	public static void main(String[] args){
 		Jedis jedis = jedisPool.getResource();
 		Options options = new Options();
 		Option filename = OptionBuilder.withArgName("file").hasArg()
-				.withDescription("the instrument profile file path from which to read trades")
+				.withDescription("the instrument profile file path (plain, .zip or .gz) from which to read contracts")
 				.create("file");
+		Option tickersOption = OptionBuilder.withArgName("tickers").hasArg()
+				.withDescription("comma separated list of root tickers to load, all tickers if omitted")
+				.create("tickers");
+		Option windowOption = OptionBuilder.withArgName("window").hasArg()
+				.withDescription("number of summary requests kept in flight (default 2000)")
+				.create("window");
+		Option timeoutOption = OptionBuilder.withArgName("timeout").hasArg()
+				.withDescription("milliseconds to wait for each summary before retrying it (default 5000)")
+				.create("timeout");
+		Option retriesOption = OptionBuilder.withArgName("retries").hasArg()
+				.withDescription("number of times failed symbols are requested again (default 3)")
+				.create("retries");
 		options.addOption(filename);
+		options.addOption(tickersOption);
+		options.addOption(windowOption);
+		options.addOption(timeoutOption);
+		options.addOption(retriesOption);
 		CommandLineParser parser = new BasicParser();
 		String instrumentFile = "";
 		try{
 			CommandLine cmd = parser.parse(options, args);
+			if(cmd.hasOption("window"))
+				window = Integer.parseInt(cmd.getOptionValue("window"));
+			if(cmd.hasOption("timeout"))
+				timeout = Long.parseLong(cmd.getOptionValue("timeout"));
+			if(cmd.hasOption("retries"))
+				retries = Integer.parseInt(cmd.getOptionValue("retries"));
 			if(cmd.hasOption("file")){
 				instrumentFile = cmd.getOptionValue("file");
-				BufferedReader reader = new BufferedReader(new FileReader(instrumentFile));
+				IpfScanner scanner = IpfScanner.open(instrumentFile);
+				// we're only interested in non-mini options. other instrument types have their own column layout
+				scanner.filter(TYPE_COLUMN, "OPTION");
+				scanner.filter(MULTIPLIER_COLUMN, "100");
+				if(cmd.hasOption("tickers"))
+					scanner.filter(TICKER_COLUMN, cmd.getOptionValue("tickers").split(","));
 				// it's going to be a very big list, might as well allocate up front
-				List<String> symbols = new ArrayList<String>(BATCH_SIZE);
+				List<String> symbols = new ArrayList<String>(1 << 19);
 
 				// discard first line with column headers
-				String line = reader.readLine();
-				int  i = 0;
-				while( (line = reader.readLine()) != null){
-					++i;
-					String[] columns = line.split(",");
-					if(!columns[MULTIPLIER_COLUMN].equals("100")) continue; // we're only interested in non-mini options
-					if(i % BATCH_SIZE == 0){
-						System.out.println(i + " " + columns[SYMBOL_COLUMN]);
-						processPromises(symbols);
-					}
-					String root_symbol = DXFeedUtils.getTicker(columns[SYMBOL_COLUMN]);
-					if(!contractsMap.containsKey(root_symbol)) {
-						contractsMap.put(root_symbol, new ArrayList<Summary>());
-					}
-					symbols.add(columns[SYMBOL_COLUMN]);
-				}
-				// process last set of promises
-				processPromises(symbols);
-				// create hash map to upload to redis
-				for(String ticker : contractsMap.keySet()){
-					Map<String, String> oiMap = new HashMap<String, String>();
-					int date = 0;
-					int counter = 0;
-					for(Summary summary : contractsMap.get(ticker)){
-						date = DayUtil.getYearMonthDayByDayId(summary.getDayId());
-						String day = "" + date;
-						day = day.substring(0, 4) + "-" + day.substring(4, 6) + "-" + day.substring(6);
-						String symbol = DXFeedUtils.normalizeContract(summary.getEventSymbol());
-						oiMap.put(symbol, ""+summary.getOpenInterest());
-					}
-					counter += contractsMap.get(ticker).size();
-					System.out.println(counter + " " + ticker);
-					try{
-						String key = "" + date + "_" + ticker + "_oi";
-						jedis.hmset(key, oiMap);
-						jedis.expire(key, EXPIRATION);
-					}
-					catch(Exception e){
-						System.out.println("error getting summary event");
-					}
+				scanner.skip();
+				while(scanner.next())
+					symbols.add(scanner.column(SYMBOL_COLUMN));
+				scanner.close();
+				System.out.println("requesting summaries for " + symbols.size() + " contracts");
+
+				List<String> failed = processPromises(symbols, jedis);
+				for(int attempt = 1; attempt <= retries && !failed.isEmpty(); ++attempt){
+					System.out.println("retrying " + failed.size() + " failed symbols, attempt " + attempt);
+					failed = processPromises(failed, jedis);
 				}
+				for(String symbol : failed)
+					System.out.println("failed to fetch summary for " + symbol);
 				System.out.println("program completed successfully");
 				System.exit(0);
 			}
@@ -139,7 +200,7 @@ public class LoadOpenInterest {
 		}catch(ParseException e){
 			System.out.println("error parsing arguments");
 			HelpFormatter formatter = new HelpFormatter();
-			formatter.printHelp("<-f FILENAME>", options);
+			formatter.printHelp("<-f FILENAME> <-tickers TICKERS> <-window NUMBER> <-timeout MILLIS> <-retries NUMBER>", options);
 			System.exit(1);
 		}catch(FileNotFoundException e){
 			System.out.println("Cannot find file " + instrumentFile);
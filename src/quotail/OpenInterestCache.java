@@ -0,0 +1,143 @@
+package quotail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+// in memory copy of the open interest hashes written by LoadOpenInterest (yyyyMMdd_TICKER_oi => {contract: oi}).
+// all hashes for a day are bulk loaded by a background thread, which also reloads them every refresh interval.
+// lookups on the cluster path never go to redis: when the first trade of another day comes in the thread is asked
+// to load that day, and until it has, lookups for that day return -1 rather than another day's open interest
+public class OpenInterestCache implements Runnable {
+	private static final int SCAN_COUNT = 1000;
+
+	private final JedisPool jedisPool;
+	private final long refreshInterval;
+	private final DayFormat dayFormat = new DayFormat();
+	// the open interest of the last day loaded. replaced wholesale on every load
+	private volatile DayOpenInterest openInterest = new DayOpenInterest(null, new HashMap<String, Long>());
+	// day the lookups are for, and the day the refresh thread last loaded. guarded by this for writes
+	private volatile String requestedDay;
+	private String loadedDay;
+
+	public OpenInterestCache(JedisPool jedisPool, long refreshInterval){
+		this.jedisPool = jedisPool;
+		this.refreshInterval = refreshInterval;
+	}
+
+	// start loading the current day in the background and keep it refreshed
+	public void start(){
+		synchronized(dayFormat){
+			requestedDay = dayFormat.format(System.currentTimeMillis());
+		}
+		Thread refresher = new Thread(this, "open-interest-refresh");
+		refresher.setDaemon(true);
+		refresher.start();
+	}
+
+	// open interest of the contract on the day of the given time, or -1 if it is unknown or that day is not loaded yet
+	public long get(String contract, long time){
+		String day;
+		synchronized(dayFormat){
+			day = dayFormat.format(time);
+		}
+		if(!day.equals(requestedDay)){
+			synchronized(this){
+				if(!day.equals(requestedDay)){
+					requestedDay = day;
+					notifyAll();
+				}
+			}
+		}
+		DayOpenInterest loaded = openInterest;
+		if(!day.equals(loaded.day))
+			return -1;
+		Long oi = loaded.openInterest.get(contract);
+		return oi == null ? -1 : oi;
+	}
+
+	public void run(){
+		try{
+			while(!Thread.currentThread().isInterrupted()){
+				String day;
+				synchronized(this){
+					// wake up for the periodic refresh or as soon as another day is asked for
+					if(requestedDay.equals(loadedDay))
+						wait(refreshInterval);
+					day = requestedDay;
+				}
+				load(day);
+			}
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// scan for every open interest hash of the day and fetch them all in one pipeline
+	private void load(String day){
+		Jedis jedis = null;
+		try{
+			jedis = jedisPool.getResource();
+			List<String> keys = new ArrayList<String>();
+			ScanParams params = new ScanParams().match(day + "_*_oi").count(SCAN_COUNT);
+			String cursor = ScanParams.SCAN_POINTER_START;
+			do{
+				ScanResult<String> result = jedis.scan(cursor, params);
+				keys.addAll(result.getResult());
+				cursor = result.getStringCursor();
+			}while(!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+			Pipeline pipeline = jedis.pipelined();
+			List<Response<Map<String, String>>> responses = new ArrayList<Response<Map<String, String>>>(keys.size());
+			for(String key : keys)
+				responses.add(pipeline.hgetAll(key));
+			pipeline.sync();
+
+			Map<String, Long> loaded = new HashMap<String, Long>(Math.max(16, openInterest.openInterest.size() * 4 / 3));
+			for(Response<Map<String, String>> response : responses){
+				for(Map.Entry<String, String> entry : response.get().entrySet()){
+					try{
+						loaded.put(entry.getKey(), Long.parseLong(entry.getValue()));
+					}
+					catch(NumberFormatException e){
+						// "null" or otherwise unknown open interest
+					}
+				}
+			}
+			openInterest = new DayOpenInterest(day, loaded);
+			System.out.println("loaded open interest for " + loaded.size() + " contracts from " + keys.size() + " tickers on " + day);
+		}
+		catch(Exception e){
+			System.out.println("error loading open interest for " + day);
+			e.printStackTrace();
+		}
+		finally{
+			// mark the day loaded even on failure so it is retried with the next refresh rather than right away
+			synchronized(this){
+				loadedDay = day;
+			}
+			if(jedis != null)
+				jedis.close();
+		}
+	}
+
+	// normalized contract => open interest, for one day
+	private static class DayOpenInterest{
+		final String day;
+		final Map<String, Long> openInterest;
+
+		DayOpenInterest(String day, Map<String, Long> openInterest){
+			this.day = day;
+			this.openInterest = openInterest;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package quotail;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// compact, interned representation of an option contract symbol. a contract is parsed once, from either
+// the dxfeed form (.AAC150821C22.5) or the normalized OCC form (AAC150821C00022500), and every later
+// lookup by either form returns the same instance so normalization and ticker lookups are field reads
+public final class OptionSymbol {
+	// the table is cleared when it grows past this many entries (two per contract) so a long running
+	// process cannot grow it without bound as contracts expire
+	static final int MAX_ENTRIES = 1 << 21;
+	static final int STRIKE_DIGITS = 8;
+	static final int NORMALIZED_SUFFIX = 6 + 1 + STRIKE_DIGITS;
+
+	private static final ConcurrentHashMap<String, OptionSymbol> table = new ConcurrentHashMap<String, OptionSymbol>(1 << 16);
+
+	public final String root;       // AAC
+	public final int expiry;        // 150821 (yymmdd)
+	public final boolean isCall;
+	public final long strike;       // strike price in mills, 22.5 => 22500
+	public final String normalized; // AAC150821C00022500
+	public final String dxfeed;     // .AAC150821C22.5
+
+	private OptionSymbol(String root, int expiry, boolean isCall, long strike, String normalized, String dxfeed){
+		this.root = root;
+		this.expiry = expiry;
+		this.isCall = isCall;
+		this.strike = strike;
+		this.normalized = normalized;
+		this.dxfeed = dxfeed;
+	}
+
+	// look up the contract for a symbol in either form, parsing and interning it on first use
+	public static OptionSymbol of(String symbol){
+		OptionSymbol option = table.get(symbol);
+		if(option != null)
+			return option;
+		option = symbol.length() > 0 && symbol.charAt(0) == '.' ? parseDXFeed(symbol) : parseNormalized(symbol);
+		if(table.size() >= MAX_ENTRIES)
+			table.clear();
+		OptionSymbol existing = table.putIfAbsent(option.normalized, option);
+		if(existing != null)
+			option = existing;
+		table.putIfAbsent(option.dxfeed, option);
+		return option;
+	}
+
+	public char getType(){ return isCall ? 'C' : 'P'; }
+
+	public String toString(){ return normalized; }
+
+	// .AAC150821C22.5
+	static OptionSymbol parseDXFeed(String symbol){
+		int typeIndex = Math.max(symbol.lastIndexOf('C'), symbol.lastIndexOf('P'));
+		if(typeIndex < 8 || typeIndex == symbol.length() - 1)
+			throw new IllegalArgumentException("not an option symbol: " + symbol);
+		int expiry = parseDigits(symbol, typeIndex - 6, typeIndex);
+		long strike = 0;
+		int decimals = -1;
+		for(int i = typeIndex + 1; i < symbol.length(); ++i){
+			char c = symbol.charAt(i);
+			if(c == '.' && decimals < 0){
+				decimals = 0;
+			}
+			else if(c >= '0' && c <= '9'){
+				// anything past the third decimal cannot be represented in mills and is dropped
+				if(decimals >= 3)
+					continue;
+				strike = strike * 10 + (c - '0');
+				if(decimals >= 0)
+					++decimals;
+			}
+			else
+				throw new IllegalArgumentException("not an option symbol: " + symbol);
+		}
+		for(int i = Math.max(decimals, 0); i < 3; ++i)
+			strike *= 10;
+		String root = symbol.substring(1, typeIndex - 6).intern();
+		char[] normalized = new char[root.length() + NORMALIZED_SUFFIX];
+		symbol.getChars(1, typeIndex + 1, normalized, 0);
+		writeStrike(strike, normalized);
+		return new OptionSymbol(root, expiry, symbol.charAt(typeIndex) == 'C', strike, new String(normalized), symbol);
+	}
+
+	// AAC150821C00022500
+	static OptionSymbol parseNormalized(String symbol){
+		int rootLength = symbol.length() - NORMALIZED_SUFFIX;
+		if(rootLength < 1)
+			throw new IllegalArgumentException("not an option symbol: " + symbol);
+		char type = symbol.charAt(rootLength + 6);
+		if(type != 'C' && type != 'P')
+			throw new IllegalArgumentException("not an option symbol: " + symbol);
+		int expiry = parseDigits(symbol, rootLength, rootLength + 6);
+		long strike = parseDigits(symbol, rootLength + 7, symbol.length());
+		String root = symbol.substring(0, rootLength).intern();
+
+		// drop leading zeros of the whole part and trailing zeros of the fraction
+		StringBuilder sb = new StringBuilder(symbol.length());
+		sb.append('.').append(symbol, 0, rootLength + 7).append(strike / 1000);
+		long fraction = strike % 1000;
+		if(fraction != 0){
+			sb.append('.');
+			for(int divisor = 100; fraction != 0; divisor /= 10){
+				sb.append((char)('0' + fraction / divisor));
+				fraction %= divisor;
+			}
+		}
+		return new OptionSymbol(root, expiry, type == 'C', strike, symbol, sb.toString());
+	}
+
+	private static void writeStrike(long strike, char[] dest){
+		for(int i = dest.length - 1; i >= dest.length - STRIKE_DIGITS; --i){
+			dest[i] = (char)('0' + strike % 10);
+			strike /= 10;
+		}
+	}
+
+	private static int parseDigits(String s, int from, int to){
+		int value = 0;
+		for(int i = from; i < to; ++i){
+			char c = s.charAt(i);
+			if(c < '0' || c > '9')
+				throw new IllegalArgumentException("not an option symbol: " + s);
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+}
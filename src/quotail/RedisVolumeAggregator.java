@@ -0,0 +1,246 @@
+package quotail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import com.dxfeed.event.market.Side;
+import com.dxfeed.event.market.TimeAndSale;
+
+// aggregates ticker and contract volume in process and writes the accumulated deltas to redis in one pipeline
+// per flush interval instead of several round trips per trade.
+// ticker agg vol structure is  20151018_AAPL_agg_vol => {"CA": "593", "CB": "4818", "CM": "31", "PA": "1241", "PB": "83", "PM": "288"}
+// contract agg vol structure is 20151018_AAPL_contract_vol => {"AAPL151018C00125000": "B:203,A:312,M:21", ...}
+// both are updated with atomic increments on the redis side, so several consumer processes can update them at once
+public class RedisVolumeAggregator implements Runnable {
+	private static final int REDIS_KEY_EXPIRY_TIME = 24*60*60;
+	static final String[] TICKER_FIELDS = {"CA", "CB", "CM", "PA", "PB", "PM"};
+	static final int SELL = 0, BUY = 1, MID = 2;
+
+	// ARGV is a flat list of (contract, B delta, A delta, M delta) tuples for the contract volume hash in KEYS[1].
+	// returns a status string, pipelined EVALSHA responses are read as strings
+	private static final String CONTRACT_VOL_SCRIPT =
+		"for i = 1, #ARGV, 4 do\n" +
+		"  local v = redis.call('HGET', KEYS[1], ARGV[i])\n" +
+		"  local b, a, m = 0, 0, 0\n" +
+		"  if v then\n" +
+		"    b = tonumber(string.match(v, 'B:(%-?%d+)')) or 0\n" +
+		"    a = tonumber(string.match(v, 'A:(%-?%d+)')) or 0\n" +
+		"    m = tonumber(string.match(v, 'M:(%-?%d+)')) or 0\n" +
+		"  end\n" +
+		"  redis.call('HSET', KEYS[1], ARGV[i], 'B:' .. (b + ARGV[i + 1]) .. ',A:' .. (a + ARGV[i + 2]) .. ',M:' .. (m + ARGV[i + 3]))\n" +
+		"end\n" +
+		"return 'OK'";
+
+	// pending deltas for one ticker on one day
+	static class TickerVolume {
+		final String tickerVolKey;
+		final String contractVolKey;
+		// indexed like TICKER_FIELDS
+		final long[] volume = new long[TICKER_FIELDS.length];
+		// contract => {B, A, M}
+		final HashMap<String, long[]> contracts = new HashMap<String, long[]>();
+
+		TickerVolume(String day, String ticker){
+			tickerVolKey = day + "_" + ticker + "_agg_vol";
+			contractVolKey = day + "_" + ticker + "_contract_vol";
+		}
+	}
+
+	private final JedisPool jedisPool;
+	private final long flushInterval;
+	// day => ticker => pending deltas, swapped out on every flush
+	private HashMap<String, HashMap<String, TickerVolume>> pending = new HashMap<String, HashMap<String, TickerVolume>>();
+	// ticker volume keys whose fields this process has already initialized
+	private final HashSet<String> initializedKeys = new HashSet<String>();
+	private String scriptSha;
+
+	private final DayFormat dayFormat = new DayFormat();
+
+	public RedisVolumeAggregator(JedisPool jedisPool, long flushInterval){
+		this.jedisPool = jedisPool;
+		this.flushInterval = flushInterval;
+	}
+
+	// add the trade to the pending ticker and contract volume. cancels subtract the size, corrections count as 0
+	public synchronized void record(TimeAndSale t, OptionSymbol option){
+		long size = t.isCancel() ? -t.getSize() : (t.isCorrection() ? 0 : t.getSize());
+		if(size == 0)
+			return;
+		int side = t.getAggressorSide() == Side.BUY ? BUY : (t.getAggressorSide() == Side.SELL ? SELL : MID);
+
+		String day = dayFormat.format(t.getTime());
+		HashMap<String, TickerVolume> tickers = pending.get(day);
+		if(tickers == null)
+			pending.put(day, tickers = new HashMap<String, TickerVolume>());
+		TickerVolume volume = tickers.get(option.root);
+		if(volume == null)
+			tickers.put(option.root, volume = new TickerVolume(day, option.root));
+
+		// CA, CB, CM for calls then PA, PB, PM for puts
+		volume.volume[(option.isCall ? 0 : 3) + (side == BUY ? 0 : (side == SELL ? 1 : 2))] += size;
+		long[] contract = volume.contracts.get(option.normalized);
+		if(contract == null)
+			volume.contracts.put(option.normalized, contract = new long[3]);
+		contract[side] += size;
+	}
+
+	public void run(){
+		try{
+			while(!Thread.currentThread().isInterrupted()){
+				Thread.sleep(flushInterval);
+				flush();
+			}
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		finally{
+			flush();
+		}
+	}
+
+	// write all pending deltas out in a single pipeline. if redis cannot be reached the deltas are merged back and
+	// retried on the next flush. once the pipeline has been started some of it may have been applied, so a failure
+	// then drops the deltas rather than count them twice on the retry
+	public void flush(){
+		HashMap<String, HashMap<String, TickerVolume>> batch;
+		synchronized(this){
+			if(pending.isEmpty())
+				return;
+			batch = pending;
+			pending = new HashMap<String, HashMap<String, TickerVolume>>();
+		}
+		Jedis jedis = null;
+		boolean written = false;
+		try{
+			jedis = jedisPool.getResource();
+			if(scriptSha == null)
+				scriptSha = jedis.scriptLoad(CONTRACT_VOL_SCRIPT);
+			written = true;
+			Pipeline pipeline = jedis.pipelined();
+			List<TickerVolume> volumes = new ArrayList<TickerVolume>();
+			List<Response<String>> scripts = new ArrayList<Response<String>>();
+			for(HashMap<String, TickerVolume> tickers : batch.values()){
+				for(TickerVolume volume : tickers.values()){
+					writeTickerVolume(pipeline, volume);
+					volumes.add(volume);
+					scripts.add(writeContractVolume(pipeline, volume));
+				}
+			}
+			pipeline.sync();
+			List<TickerVolume> missing = missingScript(volumes, scripts);
+			if(!missing.isEmpty()){
+				// redis lost the script, it was restarted or its scripts flushed. the ticker volume went through,
+				// only the contract volume is written again
+				initializedKeys.clear();
+				scriptSha = jedis.scriptLoad(CONTRACT_VOL_SCRIPT);
+				pipeline = jedis.pipelined();
+				scripts.clear();
+				for(TickerVolume volume : missing)
+					scripts.add(writeContractVolume(pipeline, volume));
+				pipeline.sync();
+				missing = missingScript(missing, scripts);
+				if(!missing.isEmpty())
+					System.err.println("dropped contract volume of " + missing.size() + " tickers, script " + scriptSha + " not found after reload");
+			}
+		}
+		catch(Exception e){
+			e.printStackTrace();
+			scriptSha = null;
+			initializedKeys.clear();
+			if(written)
+				System.err.println("dropped volume deltas of " + batch.size() + " days, the pipeline may have been partly applied");
+			else
+				requeue(batch);
+		}
+		finally{
+			if(jedis != null)
+				jedis.close();
+		}
+	}
+
+	// the volumes whose script call failed with NOSCRIPT. a pipeline sync does not raise error replies, they only
+	// show up when the response is read. other errors are logged and the deltas dropped
+	private static List<TickerVolume> missingScript(List<TickerVolume> volumes, List<Response<String>> scripts){
+		List<TickerVolume> missing = new ArrayList<TickerVolume>();
+		for(int i = 0; i < scripts.size(); ++i){
+			try{
+				scripts.get(i).get();
+			}
+			catch(JedisDataException e){
+				if(e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT"))
+					missing.add(volumes.get(i));
+				else
+					e.printStackTrace();
+			}
+		}
+		return missing;
+	}
+
+	private void writeTickerVolume(Pipeline pipeline, TickerVolume volume){
+		if(initializedKeys.add(volume.tickerVolKey)){
+			// readers expect every field to be present
+			for(String field : TICKER_FIELDS)
+				pipeline.hsetnx(volume.tickerVolKey, field, "0");
+		}
+		for(int i = 0; i < TICKER_FIELDS.length; ++i){
+			if(volume.volume[i] != 0)
+				pipeline.hincrBy(volume.tickerVolKey, TICKER_FIELDS[i], volume.volume[i]);
+		}
+		pipeline.expire(volume.tickerVolKey, REDIS_KEY_EXPIRY_TIME);
+	}
+
+	private Response<String> writeContractVolume(Pipeline pipeline, TickerVolume volume){
+		List<String> args = new ArrayList<String>(volume.contracts.size() * 4);
+		for(Map.Entry<String, long[]> entry : volume.contracts.entrySet()){
+			long[] contract = entry.getValue();
+			args.add(entry.getKey());
+			args.add(Long.toString(contract[SELL]));
+			args.add(Long.toString(contract[BUY]));
+			args.add(Long.toString(contract[MID]));
+		}
+		List<String> keys = new ArrayList<String>(1);
+		keys.add(volume.contractVolKey);
+		Response<String> script = pipeline.evalsha(scriptSha, keys, args);
+		pipeline.expire(volume.contractVolKey, REDIS_KEY_EXPIRY_TIME);
+		return script;
+	}
+
+	private synchronized void requeue(HashMap<String, HashMap<String, TickerVolume>> batch){
+		for(Map.Entry<String, HashMap<String, TickerVolume>> dayEntry : batch.entrySet()){
+			HashMap<String, TickerVolume> tickers = pending.get(dayEntry.getKey());
+			if(tickers == null){
+				pending.put(dayEntry.getKey(), dayEntry.getValue());
+				continue;
+			}
+			for(Map.Entry<String, TickerVolume> tickerEntry : dayEntry.getValue().entrySet()){
+				TickerVolume failed = tickerEntry.getValue();
+				TickerVolume volume = tickers.get(tickerEntry.getKey());
+				if(volume == null){
+					tickers.put(tickerEntry.getKey(), failed);
+					continue;
+				}
+				for(int i = 0; i < TICKER_FIELDS.length; ++i)
+					volume.volume[i] += failed.volume[i];
+				for(Map.Entry<String, long[]> contractEntry : failed.contracts.entrySet()){
+					long[] contract = volume.contracts.get(contractEntry.getKey());
+					if(contract == null){
+						volume.contracts.put(contractEntry.getKey(), contractEntry.getValue());
+						continue;
+					}
+					for(int i = 0; i < contract.length; ++i)
+						contract[i] += contractEntry.getValue()[i];
+				}
+			}
+		}
+	}
+}
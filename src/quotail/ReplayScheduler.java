@@ -0,0 +1,59 @@
+package quotail;
+
+import java.util.concurrent.locks.LockSupport;
+
+// paces replayed events against a virtual clock. the first event anchors the virtual clock to the wall clock and
+// every later event is due at anchor + (event time - first event time) / speed, so lateness on one event never
+// accumulates into the next. the replay thread parks until an event is due instead of spinning.
+// a speed of zero or less replays as fast as possible
+public class ReplayScheduler {
+	private final double speed;
+	private long wallStart;
+	private long eventStart = Long.MIN_VALUE;
+	// how far behind schedule events were handed out
+	private long maxLateNanos;
+	private long totalLateNanos;
+	private long events;
+
+	public ReplayScheduler(double speed){
+		this.speed = speed;
+	}
+
+	// parse a speed multiplier such as "1", "10" or "max"
+	public static double parseSpeed(String speed){
+		if(speed.equalsIgnoreCase("max"))
+			return 0;
+		if(speed.endsWith("x"))
+			speed = speed.substring(0, speed.length() - 1);
+		return Double.parseDouble(speed);
+	}
+
+	// block until the event time is due on the virtual clock
+	public void awaitEventTime(long eventTime){
+		++events;
+		if(speed <= 0)
+			return;
+		if(eventStart == Long.MIN_VALUE){
+			eventStart = eventTime;
+			wallStart = System.nanoTime();
+			return;
+		}
+		long due = wallStart + (long)((eventTime - eventStart) * 1000000L / speed);
+		long now = System.nanoTime();
+		while(now < due){
+			LockSupport.parkNanos(due - now);
+			now = System.nanoTime();
+		}
+		long late = now - due;
+		totalLateNanos += late;
+		if(late > maxLateNanos)
+			maxLateNanos = late;
+	}
+
+	public String toString(){
+		if(speed <= 0)
+			return String.format("replayed %d batches at max speed", events);
+		return String.format("replayed %d batches at %.1fx, average lateness %.3f ms, max %.3f ms",
+				events, speed, events == 0 ? 0.0 : totalLateNanos / 1e6 / events, maxLateNanos / 1e6);
+	}
+}
@@ -0,0 +1,162 @@
+package quotail;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// works out which strategy a completed bin of spread legs traded as. legs are ordered by expiry, strike and
+// type, their quantities reduced to a small whole ratio, and the strategy read off the shape of the legs:
+//   VERTICAL      2 legs, same expiry and type, different strikes, 1:1
+//   RATIO         2 legs, same expiry and type, different strikes, any other ratio (1:2, 2:3, ...)
+//   STRADDLE      a call and a put, same expiry and strike, 1:1
+//   STRANGLE      a call and a put, same expiry, different strikes, 1:1
+//   CALENDAR      2 legs, same type and strike, different expiries, 1:1
+//   DIAGONAL      2 legs, same type, different strikes and expiries, 1:1
+//   BUTTERFLY     3 legs, same expiry and type, equidistant strikes, 1:2:1
+//   CONDOR        4 legs, same expiry and type, wings of equal width, 1:1:1:1
+//   IRON_CONDOR   2 puts below 2 calls, same expiry, 1:1:1:1
+//   COMPLEX       any other consistent combination
+// a bin whose quantities do not reduce to a ratio of at most MAX_RATIO is not treated as a spread, the legs
+// only ended up together because they traded within the same few milliseconds. stateless and thread safe
+public class SpreadMatcher {
+	public enum Strategy {
+		VERTICAL, RATIO, STRADDLE, STRANGLE, CALENDAR, DIAGONAL, BUTTERFLY, CONDOR, IRON_CONDOR, COMPLEX
+	}
+
+	static final int MAX_RATIO = 5;
+	// how far a leg quantity may be off its share of the ratio, partial fills make exact ratios rare
+	static final double RATIO_TOLERANCE = 0.05;
+
+	private static final Comparator<Leg> LEG_ORDER = new Comparator<Leg>(){
+		public int compare(Leg l1, Leg l2){
+			if(l1.option.expiry != l2.option.expiry)
+				return l1.option.expiry < l2.option.expiry ? -1 : 1;
+			if(l1.option.strike != l2.option.strike)
+				return l1.option.strike < l2.option.strike ? -1 : 1;
+			return l1.option.isCall == l2.option.isCall ? 0 : (l1.option.isCall ? 1 : -1);
+		}
+	};
+
+	static class Leg {
+		final Cluster cluster;
+		final OptionSymbol option;
+		int ratio;
+		Leg(Cluster cluster){
+			this.cluster = cluster;
+			this.option = OptionSymbol.of(cluster.first().getEventSymbol());
+		}
+	}
+
+	// a matched spread, legs in expiry, strike and type order
+	public static class Spread {
+		public final String ticker;
+		public final Strategy strategy;
+		final Leg[] legs;
+		Spread(String ticker, Strategy strategy, Leg[] legs){
+			this.ticker = ticker;
+			this.strategy = strategy;
+			this.legs = legs;
+		}
+
+		public void writeJSON(JsonWriter json){
+			json.beginObject();
+			json.name("ticker").value(ticker);
+			json.name("strategy").value(strategy.name());
+			json.name("time").value(legs[0].cluster.first().getTime());
+			json.name("ratio").beginArray();
+			for(Leg leg : legs)
+				json.value(leg.ratio);
+			json.endArray();
+			json.name("legs").beginArray();
+			for(Leg leg : legs)
+				leg.cluster.writeJSON(json);
+			json.endArray();
+			json.endObject();
+		}
+	}
+
+	// the spread the legs of the bin form, or null if they are not a consistent spread. the caller must hold
+	// the bin lock
+	public static Spread match(Bin bin){
+		if(bin.legs.size() < 2)
+			return null;
+		Leg[] legs = new Leg[bin.legs.size()];
+		for(int i = 0; i < legs.length; ++i)
+			legs[i] = new Leg(bin.legs.get(i));
+		if(!reduceRatio(legs))
+			return null;
+		Arrays.sort(legs, LEG_ORDER);
+		return new Spread(legs[0].option.root, classify(legs), legs);
+	}
+
+	// set each leg's share of the smallest whole ratio that fits the quantities, false if none does
+	static boolean reduceRatio(Leg[] legs){
+		int smallest = Integer.MAX_VALUE;
+		for(Leg leg : legs)
+			smallest = Math.min(smallest, leg.cluster.quantity);
+		if(smallest <= 0)
+			return false;
+		for(int unitsOfSmallest = 1; unitsOfSmallest <= MAX_RATIO; ++unitsOfSmallest){
+			boolean fits = true;
+			for(Leg leg : legs){
+				double share = (double)leg.cluster.quantity * unitsOfSmallest / smallest;
+				long ratio = Math.round(share);
+				if(ratio > MAX_RATIO || Math.abs(share - ratio) > RATIO_TOLERANCE * ratio){
+					fits = false;
+					break;
+				}
+				leg.ratio = (int)ratio;
+			}
+			if(fits)
+				return true;
+		}
+		return false;
+	}
+
+	static Strategy classify(Leg[] legs){
+		boolean sameExpiry = true, sameType = true, sameRatio = true;
+		for(int i = 1; i < legs.length; ++i){
+			sameExpiry &= legs[i].option.expiry == legs[0].option.expiry;
+			sameType &= legs[i].option.isCall == legs[0].option.isCall;
+			sameRatio &= legs[i].ratio == legs[0].ratio;
+		}
+		if(legs.length == 2){
+			OptionSymbol o1 = legs[0].option, o2 = legs[1].option;
+			boolean sameStrike = o1.strike == o2.strike;
+			if(sameExpiry && sameType)
+				return sameStrike ? Strategy.COMPLEX : (sameRatio ? Strategy.VERTICAL : Strategy.RATIO);
+			if(!sameRatio)
+				return Strategy.COMPLEX;
+			if(sameExpiry)
+				return sameStrike ? Strategy.STRADDLE : Strategy.STRANGLE;
+			if(sameType)
+				return sameStrike ? Strategy.CALENDAR : Strategy.DIAGONAL;
+			return Strategy.COMPLEX;
+		}
+		if(legs.length == 3 && sameExpiry && sameType && equidistant(legs)
+				&& legs[0].ratio == 1 && legs[1].ratio == 2 && legs[2].ratio == 1)
+			return Strategy.BUTTERFLY;
+		if(legs.length == 4 && sameExpiry && sameRatio){
+			long lowerWing = legs[1].option.strike - legs[0].option.strike;
+			long upperWing = legs[3].option.strike - legs[2].option.strike;
+			if(sameType && lowerWing > 0 && lowerWing == upperWing && legs[2].option.strike > legs[1].option.strike)
+				return Strategy.CONDOR;
+			// legs are in strike order, an iron condor is two puts followed by two calls
+			if(!legs[0].option.isCall && !legs[1].option.isCall && legs[2].option.isCall && legs[3].option.isCall
+					&& legs[1].option.strike < legs[2].option.strike)
+				return Strategy.IRON_CONDOR;
+		}
+		return Strategy.COMPLEX;
+	}
+
+	// strikes in strictly increasing steps of the same width
+	private static boolean equidistant(Leg[] legs){
+		long width = legs[1].option.strike - legs[0].option.strike;
+		if(width <= 0)
+			return false;
+		for(int i = 2; i < legs.length; ++i){
+			if(legs[i].option.strike - legs[i - 1].option.strike != width)
+				return false;
+		}
+		return true;
+	}
+}
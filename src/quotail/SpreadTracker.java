@@ -1,51 +1,94 @@
 package quotail;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 // class manages the number of legs in a spread and the number that have been processed
 // a spread will only be pushed out to kafka when all of its legs have been processed
+// open bins are indexed per ticker by the time of their first leg, so a leg is matched by looking at the
+// nearest bin on either side of its time instead of scanning every open bin. once every SPREAD_EXPIRY of
+// feed time, the bins of every ticker that are still open SPREAD_EXPIRY after their first leg are dropped,
+// they will never complete
 public class SpreadTracker {
-	HashMap<String, LinkedBlockingQueue<Bin>> spreads = new HashMap<String, LinkedBlockingQueue<Bin>>();
+	ConcurrentHashMap<String, ConcurrentNavigableMap<Long, Bin>> spreads = new ConcurrentHashMap<String, ConcurrentNavigableMap<Long, Bin>>();
 	final int SPREAD_TIME_THRESHOLD = 10;
+	final long SPREAD_EXPIRY = 60*1000;
+	// feed time of the last sweep for stale bins
+	private final AtomicLong lastExpiry = new AtomicLong();
+
 	public Bin findBin(Cluster cluster, String ticker){
-		LinkedBlockingQueue<Bin> bins = spreads.get(ticker);
-		for(Bin bin: bins){
-			if(Math.abs( bin.time - cluster.trades.getFirst().getTime() ) < SPREAD_TIME_THRESHOLD){
-				return bin;
-			}
-		}
+		ConcurrentNavigableMap<Long, Bin> bins = spreads.get(ticker);
+		if(bins == null)
+			return null;
+		long time = cluster.first().getTime();
+		Map.Entry<Long, Bin> before = bins.floorEntry(time);
+		Map.Entry<Long, Bin> after = bins.higherEntry(time);
+		long beforeGap = before == null ? Long.MAX_VALUE : time - before.getKey();
+		long afterGap = after == null ? Long.MAX_VALUE : after.getKey() - time;
+		if(beforeGap < SPREAD_TIME_THRESHOLD && beforeGap <= afterGap)
+			return before.getValue();
+		if(afterGap < SPREAD_TIME_THRESHOLD)
+			return after.getValue();
 		return null;
 	}
-	
+
 	public Bin addCluster(Cluster cluster){
-		String ticker = DXFeedUtils.getTicker(cluster.trades.get(0).getEventSymbol());
-		Bin retval;
-		if(!spreads.containsKey(ticker)){
-			// if no spread exists for this ticker, create new bin and new queue of bins for this ticker
+		String ticker = DXFeedUtils.getTicker(cluster.first().getEventSymbol());
+		ConcurrentNavigableMap<Long, Bin> bins = spreads.get(ticker);
+		if(bins == null){
+			// if no spread exists for this ticker, create a new index of bins for this ticker
+			ConcurrentNavigableMap<Long, Bin> existing = spreads.putIfAbsent(ticker, bins = new ConcurrentSkipListMap<Long, Bin>());
+			if(existing != null)
+				bins = existing;
+		}
+		long time = cluster.first().getTime();
+		long last = lastExpiry.get();
+		if(time - last >= SPREAD_EXPIRY && lastExpiry.compareAndSet(last, time))
+			expire(time - SPREAD_EXPIRY);
+		while(true){
+			// try to match with the bin that corresponds to the same interval. if none exists, create new bin
+			Bin retval = findBin(cluster, ticker);
+			if(retval != null && join(bins, retval, cluster))
+				return retval;
 			retval = new Bin(cluster);
-			LinkedBlockingQueue<Bin> bins = new LinkedBlockingQueue<Bin>();
-			bins.offer(retval);
-			spreads.put(ticker, bins);
+			// another producer may have opened a bin at the same time, join that one instead of replacing it
+			Bin existing = bins.putIfAbsent(retval.time, retval);
+			if(existing == null)
+				return retval;
+			if(join(bins, existing, cluster))
+				return existing;
+			// the bin was published and removed in the meantime, look again
 		}
-		else{
-			// if bins exist for ticker, try to match with the one that corresponds to the same interval. if none exists, create new bin and add to queue
-			LinkedBlockingQueue<Bin> bins = spreads.get(ticker);
-			retval = findBin(cluster, ticker);
-			if(retval == null){
-				retval = new Bin(cluster);
-				bins.add(retval);
-			}
-			else{
-				retval.legs.add(cluster);
-			}
+	}
+
+	// add the cluster to the bin unless it is no longer open. the consumer removes a bin under its lock once it is published
+	private static boolean join(ConcurrentNavigableMap<Long, Bin> bins, Bin bin, Cluster cluster){
+		synchronized(bin){
+			if(bins.get(bin.time) != bin)
+				return false;
+			bin.legs.add(cluster);
+			return true;
 		}
-		return retval;
 	}
-	
+
 	public void removeBin(Bin target, String ticker){
-		LinkedBlockingQueue<Bin> bins = spreads.get(ticker);
-		bins.remove(target);
+		ConcurrentNavigableMap<Long, Bin> bins = spreads.get(ticker);
+		if(bins != null)
+			bins.remove(target.time, target);
+	}
+
+	// drop the bins of every ticker whose first leg is older than the cutoff. each bin is removed under its
+	// lock, so it cannot be expired while a leg is joining it or the consumer is publishing it
+	private void expire(long cutoff){
+		for(ConcurrentNavigableMap<Long, Bin> bins : spreads.values()){
+			for(Bin bin : bins.headMap(cutoff).values()){
+				synchronized(bin){
+					bins.remove(bin.time, bin);
+				}
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -1,14 +1,237 @@
 package quotail;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import kafka.producer.Partitioner;
 import kafka.utils.VerifiableProperties;
 
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+// partitions trades by ticker. tickers listed in the optional weights file (TICKER,VOLUME per line, see main)
+// are spread over the partitions by volume, heaviest first onto the least loaded partition, so hot roots like
+// SPY and SPX do not land on the same partition by chance. every other ticker is assigned by a hash of the full
+// ticker over the partitions no weighted ticker was pinned to, so the partitions carrying the hot roots do not
+// also take a share of the rest. when every partition has a pinned ticker, the rest is hashed over all of them
 public class TickerPartitioner implements Partitioner{
-	public TickerPartitioner(VerifiableProperties props){}
-	
-	// partition ticker based on first character
+	public static final String WEIGHTS_PROPERTY = "ticker.weights";
+
+	private final Map<String, Long> weights;
+	// the assignment for the last partition count we were asked about
+	private volatile Assignment assignment;
+
+	public TickerPartitioner(VerifiableProperties props){
+		this(props.getString(WEIGHTS_PROPERTY, null));
+	}
+
+	public TickerPartitioner(String weightsFile){
+		weights = weightsFile == null ? new HashMap<String, Long>() : readWeights(weightsFile);
+	}
+
 	public int partition(Object key, int numPartitions){
-		String keyStr = new String((byte[])key);
-		return keyStr.charAt(0) % numPartitions;
+		if(key instanceof byte[])
+			return partition((byte[])key, numPartitions);
+		return partition(key.toString(), numPartitions);
+	}
+
+	public int partition(byte[] ticker, int numPartitions){
+		if(weights.isEmpty())
+			return hash(ticker) % numPartitions;
+		Assignment assigned = assignment(numPartitions);
+		Integer pinned = assigned.pinned.get(new String(ticker, StandardCharsets.US_ASCII));
+		if(pinned != null)
+			return pinned;
+		return assigned.unpinned[hash(ticker) % assigned.unpinned.length];
+	}
+
+	public int partition(String ticker, int numPartitions){
+		// tickers are ascii, so this hashes the same as the byte[] keys
+		return partition(ticker.getBytes(StandardCharsets.US_ASCII), numPartitions);
+	}
+
+	// non-negative FNV-1a hash of the ticker
+	private static int hash(byte[] ticker){
+		int hash = 0x811c9dc5;
+		for(byte b : ticker){
+			hash ^= b & 0xff;
+			hash *= 0x01000193;
+		}
+		return mix(hash) & Integer.MAX_VALUE;
+	}
+
+	// murmur3 finalizer, spreads the low bits so that short tickers differing in one character do not cluster
+	private static int mix(int h){
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private Assignment assignment(int numPartitions){
+		Assignment current = assignment;
+		if(current != null && current.numPartitions == numPartitions)
+			return current;
+		synchronized(this){
+			if(assignment == null || assignment.numPartitions != numPartitions)
+				assignment = new Assignment(assign(weights, numPartitions), numPartitions);
+			return assignment;
+		}
+	}
+
+	// weighted ticker => partition, and the partitions left for hashing the other tickers
+	private static class Assignment{
+		final Map<String, Integer> pinned;
+		final int[] unpinned;
+		final int numPartitions;
+
+		Assignment(Map<String, Integer> pinned, int numPartitions){
+			this.pinned = pinned;
+			this.numPartitions = numPartitions;
+			boolean[] used = new boolean[numPartitions];
+			int free = numPartitions;
+			for(int p : pinned.values()){
+				if(!used[p]){
+					used[p] = true;
+					--free;
+				}
+			}
+			if(free == 0){
+				// every partition carries a weighted ticker, hash over all of them
+				used = new boolean[numPartitions];
+				free = numPartitions;
+			}
+			unpinned = new int[free];
+			for(int p = 0, i = 0; p < numPartitions; ++p){
+				if(!used[p])
+					unpinned[i++] = p;
+			}
+		}
+	}
+
+	// greedy balancing: heaviest ticker first, each onto the partition with the least volume so far
+	static Map<String, Integer> assign(Map<String, Long> weights, int numPartitions){
+		List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(weights.entrySet());
+		Collections.sort(sorted, new Comparator<Map.Entry<String, Long>>(){
+			public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2){
+				return Long.compare(e2.getValue(), e1.getValue());
+			}
+		});
+		long[] load = new long[numPartitions];
+		Map<String, Integer> assignment = new HashMap<String, Integer>();
+		for(Map.Entry<String, Long> entry : sorted){
+			int lightest = 0;
+			for(int p = 1; p < numPartitions; ++p){
+				if(load[p] < load[lightest])
+					lightest = p;
+			}
+			load[lightest] += entry.getValue();
+			assignment.put(entry.getKey(), lightest);
+		}
+		return assignment;
+	}
+
+	static Map<String, Long> readWeights(String weightsFile){
+		Map<String, Long> weights = new HashMap<String, Long>();
+		BufferedReader reader = null;
+		try{
+			reader = new BufferedReader(new FileReader(weightsFile));
+			String line;
+			while((line = reader.readLine()) != null){
+				int comma = line.indexOf(',');
+				if(line.startsWith("#") || comma < 0)
+					continue;
+				try{
+					weights.put(line.substring(0, comma).trim(), Long.parseLong(line.substring(comma + 1).trim()));
+				}
+				catch(NumberFormatException e){
+					// this runs while kafka constructs the producer, a bad line must not fail it
+					System.out.println("skipping malformed ticker weight: " + line);
+				}
+			}
+		}
+		catch(IOException e){
+			System.out.println("unable to read ticker weights from " + weightsFile + ", hashing all tickers");
+			e.printStackTrace();
+		}
+		finally{
+			if(reader != null){
+				try{
+					reader.close();
+				}
+				catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+		}
+		return weights;
+	}
+
+	// generate a weights file from the aggregate volume hashes (yyyyMMdd_TICKER_agg_vol) of a day, keeping the top tickers
+	// usage: TickerPartitioner yyyyMMdd OUTFILE [TOP_N]
+	public static void main(String[] args) throws IOException{
+		if(args.length < 2){
+			System.out.println("usage: TickerPartitioner yyyyMMdd OUTFILE [TOP_N]");
+			System.exit(1);
+		}
+		String day = args[0];
+		int top = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		JedisPool jedisPool = new JedisPool(new JedisPoolConfig(), "localhost");
+		Jedis jedis = jedisPool.getResource();
+
+		List<String> keys = new ArrayList<String>();
+		ScanParams params = new ScanParams().match(day + "_*_agg_vol").count(1000);
+		String cursor = ScanParams.SCAN_POINTER_START;
+		do{
+			ScanResult<String> result = jedis.scan(cursor, params);
+			keys.addAll(result.getResult());
+			cursor = result.getStringCursor();
+		}while(!cursor.equals(ScanParams.SCAN_POINTER_START));
+		Pipeline pipeline = jedis.pipelined();
+		List<Response<Map<String, String>>> responses = new ArrayList<Response<Map<String, String>>>(keys.size());
+		for(String key : keys)
+			responses.add(pipeline.hgetAll(key));
+		pipeline.sync();
+		jedis.close();
+
+		final Map<String, Long> volumes = new HashMap<String, Long>();
+		for(int i = 0; i < keys.size(); ++i){
+			String key = keys.get(i);
+			String ticker = key.substring(day.length() + 1, key.length() - "_agg_vol".length());
+			long volume = 0;
+			for(String value : responses.get(i).get().values())
+				volume += Long.parseLong(value);
+			volumes.put(ticker, volume);
+		}
+		List<String> tickers = new ArrayList<String>(volumes.keySet());
+		Collections.sort(tickers, new Comparator<String>(){
+			public int compare(String t1, String t2){
+				return Long.compare(volumes.get(t2), volumes.get(t1));
+			}
+		});
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(args[1])));
+		out.println("# ticker volume for " + day);
+		for(String ticker : tickers.subList(0, Math.min(top, tickers.size())))
+			out.println(ticker + "," + volumes.get(ticker));
+		out.close();
+		System.out.println("wrote " + Math.min(top, tickers.size()) + " ticker weights to " + args[1]);
 	}
 }
@@ -0,0 +1,433 @@
+package quotail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dxfeed.event.market.Side;
+import com.dxfeed.event.market.TimeAndSale;
+import com.dxfeed.event.market.TimeAndSaleType;
+
+// append only binary journal of trades, written and read through memory mapped regions.
+// a journal is a directory with one segment per day, trades_yyyyMMdd.journal, laid out as
+//   header       magic (4 bytes) + version (4 bytes)
+//   records      1 type byte followed by the payload, the type byte is written last
+//     SYMBOL     id (4 bytes) + length (2 bytes) + ascii chars, defines an entry of the segment's symbol dictionary
+//     TRADE      symbol id (4), time (8), sequence (4), exchange (2), size (8), price (8), bid (8), ask (8),
+//                flags (1, same bits as TradeSerializer), conditions id (4, -1 when null)
+//     PAD        rest of the region is unused
+//     END        (zero) no more records, the tail of a segment that was not closed cleanly is all zeros, and so
+//                is the type of a record the process was killed in the middle of writing
+// records never straddle a REGION_SIZE boundary so each region can be mapped on its own. every symbol and sale
+// condition string is written once per segment and trades refer to it by id, so trade records have a fixed size
+public class TradeJournal {
+	static final int MAGIC = 0x54524a4c; // TRJL
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final long REGION_SIZE = 64 << 20;
+
+	static final byte END = 0;
+	static final byte SYMBOL = 1;
+	static final byte TRADE = 2;
+	static final byte PAD = 3;
+
+	static final int TRADE_SIZE = 1 + 4 + 8 + 4 + 2 + 8 + 8 + 8 + 8 + 1 + 4;
+	// offsets of the trade fields from the start of the record
+	static final int SYMBOL_OFFSET = 1;
+	static final int TIME_OFFSET = 5;
+	static final int SEQUENCE_OFFSET = 13;
+	static final int EXCHANGE_OFFSET = 17;
+	static final int SIZE_OFFSET = 19;
+	static final int PRICE_OFFSET = 27;
+	static final int BID_OFFSET = 35;
+	static final int ASK_OFFSET = 43;
+	static final int FLAGS_OFFSET = 51;
+	static final int CONDITIONS_OFFSET = 52;
+
+	static final String SEGMENT_PREFIX = "trades_";
+	static final String SEGMENT_SUFFIX = ".journal";
+
+	public static String segmentName(String day){
+		return SEGMENT_PREFIX + day + SEGMENT_SUFFIX;
+	}
+
+	// a journal directory or a single segment file
+	public static boolean isJournal(String path){
+		File file = new File(path);
+		if(file.isDirectory())
+			return true;
+		try{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try{
+				return raf.length() >= HEADER_SIZE && raf.readInt() == MAGIC;
+			}
+			finally{
+				raf.close();
+			}
+		}
+		catch(IOException e){
+			return false;
+		}
+	}
+
+	// reader over a single segment or over every segment of a journal directory in day order. a directory
+	// without segments of its own is read as the journals in its subdirectories, as written by a sharded
+	// DXFeedSummary backfill
+	public static Reader openReader(String path) throws IOException{
+		File file = new File(path);
+		File[] segments;
+		if(file.isDirectory()){
+			segments = listSegments(file);
+			if(segments.length == 0){
+				List<File> shardSegments = new ArrayList<File>();
+				File[] shards = file.listFiles();
+				Arrays.sort(shards);
+				for(File shard : shards){
+					if(shard.isDirectory())
+						shardSegments.addAll(Arrays.asList(listSegments(shard)));
+				}
+				segments = shardSegments.toArray(new File[shardSegments.size()]);
+				// day order first, shards of the same day in shard order
+				Arrays.sort(segments, new Comparator<File>(){
+					public int compare(File f1, File f2){
+						int byDay = f1.getName().compareTo(f2.getName());
+						return byDay != 0 ? byDay : f1.getPath().compareTo(f2.getPath());
+					}
+				});
+			}
+		}
+		else if(file.exists()){
+			segments = new File[]{ file };
+		}
+		else{
+			throw new IOException("no trade journal at " + path);
+		}
+		return new Reader(segments);
+	}
+
+	private static File[] listSegments(File dir){
+		File[] segments = dir.listFiles(new FilenameFilter(){
+			public boolean accept(File dir, String name){
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	// appends trades to the segment of their day. trades from an earlier day than the open segment (late prints
+	// around midnight) stay in the open segment rather than reopening an old one
+	public static class Writer {
+		private final File dir;
+		private final DayFormat dayFormat = new DayFormat();
+		private String day;
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private MappedByteBuffer region;
+		private long regionStart;
+		private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+		public Writer(String dir) throws IOException{
+			this.dir = new File(dir);
+			if(!this.dir.isDirectory() && !this.dir.mkdirs())
+				throw new IOException("unable to create trade journal directory " + dir);
+		}
+
+		public synchronized void append(TimeAndSale t) throws IOException{
+			String tradeDay = dayFormat.format(t.getTime());
+			if(day == null || tradeDay.compareTo(day) > 0)
+				openSegment(tradeDay);
+			int symbol = symbolId(t.getEventSymbol());
+			String conditions = t.getExchangeSaleConditions();
+			int conditionsId = conditions == null ? -1 : symbolId(conditions);
+			reserve(TRADE_SIZE);
+			int record = region.position();
+			region.position(record + 1);
+			region.putInt(symbol);
+			region.putLong(t.getTime());
+			region.putInt(t.getSequence());
+			region.putChar(t.getExchangeCode());
+			region.putLong(t.getSize());
+			region.putDouble(t.getPrice());
+			region.putDouble(t.getBidPrice());
+			region.putDouble(t.getAskPrice());
+			int flags = t.getAggressorSide().getCode() & TradeSerializer.SIDE_MASK;
+			if(t.isSpreadLeg())
+				flags |= TradeSerializer.SPREAD_LEG;
+			flags |= (t.getType().getCode() & TradeSerializer.TYPE_MASK) << TradeSerializer.TYPE_SHIFT;
+			if(t.isExtendedTradingHours())
+				flags |= TradeSerializer.ETH;
+			if(t.isValidTick())
+				flags |= TradeSerializer.VALID_TICK;
+			region.put((byte)flags);
+			region.putInt(conditionsId);
+			region.put(record, TRADE);
+		}
+
+		// truncate the open segment to the records written so far
+		public synchronized void close() throws IOException{
+			if(channel == null)
+				return;
+			long end = regionStart + region.position();
+			region.force();
+			region = null;
+			channel.truncate(end);
+			file.close();
+			file = null;
+			channel = null;
+			day = null;
+		}
+
+		// close the journal cleanly when the jvm exits, for the streaming modes that never return
+		public Writer closeOnExit(){
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+				public void run(){
+					try{
+						close();
+					}
+					catch(IOException e){
+						e.printStackTrace();
+					}
+				}
+			}, "trade-journal-close"));
+			return this;
+		}
+
+		private int symbolId(String symbol) throws IOException{
+			Integer id = dictionary.get(symbol);
+			if(id != null)
+				return id;
+			id = dictionary.size();
+			reserve(1 + 4 + 2 + symbol.length());
+			int record = region.position();
+			region.position(record + 1);
+			region.putInt(id);
+			region.putShort((short)symbol.length());
+			for(int i = 0; i < symbol.length(); ++i)
+				region.put((byte)symbol.charAt(i));
+			region.put(record, SYMBOL);
+			dictionary.put(symbol, id);
+			return id;
+		}
+
+		// make sure the next record fits in the current region, moving on to the next region if it does not
+		private void reserve(int size) throws IOException{
+			if(region.remaining() >= size)
+				return;
+			if(region.hasRemaining())
+				region.put(PAD);
+			regionStart += REGION_SIZE;
+			region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+		}
+
+		// open the segment of the day, picking up after the last record if it already exists
+		private void openSegment(String newDay) throws IOException{
+			close();
+			File segment = new File(dir, segmentName(newDay));
+			dictionary.clear();
+			long end = HEADER_SIZE;
+			if(segment.length() >= HEADER_SIZE){
+				Reader existing = new Reader(new File[]{ segment });
+				while(existing.next());
+				existing.close();
+				for(int i = 0; i < existing.symbols.size(); ++i)
+					dictionary.put(existing.symbols.get(i), i);
+				end = existing.segmentEnd;
+			}
+			file = new RandomAccessFile(segment, "rw");
+			channel = file.getChannel();
+			regionStart = end / REGION_SIZE * REGION_SIZE;
+			region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+			if(end == HEADER_SIZE){
+				region.putInt(0, MAGIC);
+				region.putInt(4, VERSION);
+			}
+			region.position((int)(end - regionStart));
+			// clear what is left of a record torn by a crash, so it cannot show up behind the records written next
+			for(int i = region.position(), last = Math.min(region.limit(), i + 7 + 0xffff); i < last; ++i)
+				region.put(i, END);
+			day = newDay;
+		}
+	}
+
+	// iterates the trade records in place. the getters read the current record straight out of the mapped
+	// region, toTrade only allocates when a TimeAndSale is actually needed
+	//
+	//   TradeJournal.Reader reader = TradeJournal.openReader(path);
+	//   while(reader.next())
+	//       if(reader.getSize() >= 1000)
+	//           trades.add(reader.toTrade());
+	//   reader.close();
+	public static class Reader {
+		private final File[] segments;
+		private int segment = -1;
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private long fileSize;
+		private long regionStart;
+		private MappedByteBuffer region;
+		private int record;
+		// symbol dictionary of the current segment, indexed by id
+		final List<String> symbols = new ArrayList<String>();
+		// file offset just past the last record of the current segment, known once the segment is exhausted
+		long segmentEnd;
+
+		Reader(File[] segments){
+			this.segments = segments;
+		}
+
+		public boolean next() throws IOException{
+			while(true){
+				if(region == null || !region.hasRemaining()){
+					if(!nextRegion())
+						return false;
+					continue;
+				}
+				int pos = region.position();
+				byte type = region.get(pos);
+				if(type == TRADE && pos + TRADE_SIZE <= region.limit()){
+					record = pos;
+					region.position(pos + TRADE_SIZE);
+					return true;
+				}
+				else if(type == SYMBOL && pos + 7 <= region.limit()){
+					int length = region.getShort(pos + 5) & 0xffff;
+					if(pos + 7 + length > region.limit()){
+						endSegment(pos);
+						continue;
+					}
+					char[] chars = new char[length];
+					for(int i = 0; i < length; ++i)
+						chars[i] = (char)(region.get(pos + 7 + i) & 0xff);
+					symbols.add(new String(chars));
+					region.position(pos + 7 + length);
+				}
+				else if(type == PAD){
+					region.position(region.limit());
+				}
+				else{
+					// END, or a record cut short by a crash
+					endSegment(pos);
+				}
+			}
+		}
+
+		public String getSymbol(){ return symbols.get(region.getInt(record + SYMBOL_OFFSET)); }
+		public long getTime(){ return region.getLong(record + TIME_OFFSET); }
+		public int getSequence(){ return region.getInt(record + SEQUENCE_OFFSET); }
+		public char getExchangeCode(){ return region.getChar(record + EXCHANGE_OFFSET); }
+		public long getSize(){ return region.getLong(record + SIZE_OFFSET); }
+		public double getPrice(){ return region.getDouble(record + PRICE_OFFSET); }
+		public double getBidPrice(){ return region.getDouble(record + BID_OFFSET); }
+		public double getAskPrice(){ return region.getDouble(record + ASK_OFFSET); }
+
+		public TimeAndSale toTrade(){
+			TimeAndSale t = new TimeAndSale(getSymbol());
+			t.setTime(getTime());
+			t.setSequence(getSequence());
+			t.setExchangeCode(getExchangeCode());
+			t.setSize(getSize());
+			t.setPrice(getPrice());
+			t.setBidPrice(getBidPrice());
+			t.setAskPrice(getAskPrice());
+			int flags = region.get(record + FLAGS_OFFSET);
+			t.setAggressorSide(Side.valueOf(flags & TradeSerializer.SIDE_MASK));
+			t.setSpreadLeg((flags & TradeSerializer.SPREAD_LEG) != 0);
+			t.setType(TimeAndSaleType.valueOf((flags >> TradeSerializer.TYPE_SHIFT) & TradeSerializer.TYPE_MASK));
+			t.setExtendedTradingHours((flags & TradeSerializer.ETH) != 0);
+			t.setValidTick((flags & TradeSerializer.VALID_TICK) != 0);
+			int conditions = region.getInt(record + CONDITIONS_OFFSET);
+			if(conditions >= 0)
+				t.setExchangeSaleConditions(symbols.get(conditions));
+			return t;
+		}
+
+		public void close() throws IOException{
+			region = null;
+			if(file != null)
+				file.close();
+			file = null;
+			channel = null;
+		}
+
+		private void endSegment(int pos){
+			segmentEnd = regionStart + pos;
+			// skip whatever is left of the segment
+			regionStart = fileSize;
+			region.position(region.limit());
+		}
+
+		private boolean nextRegion() throws IOException{
+			if(region != null && regionStart + REGION_SIZE < fileSize){
+				regionStart += REGION_SIZE;
+				region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, Math.min(REGION_SIZE, fileSize - regionStart));
+				return true;
+			}
+			if(region != null && regionStart < fileSize)
+				segmentEnd = fileSize;
+			return nextSegment();
+		}
+
+		private boolean nextSegment() throws IOException{
+			while(segment + 1 < segments.length){
+				close();
+				File next = segments[++segment];
+				file = new RandomAccessFile(next, "r");
+				channel = file.getChannel();
+				fileSize = channel.size();
+				if(fileSize < HEADER_SIZE || file.readInt() != MAGIC){
+					System.out.println("skipping " + next + ", not a trade journal segment");
+					continue;
+				}
+				symbols.clear();
+				regionStart = 0;
+				segmentEnd = HEADER_SIZE;
+				region = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(REGION_SIZE, fileSize));
+				region.position(HEADER_SIZE);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	// convert a tab separated trade file written by older versions into a journal directory, or print a journal
+	// usage: TradeJournal convert TRADEFILE JOURNAL | TradeJournal dump JOURNAL
+	public static void main(String[] args) throws IOException{
+		if(args.length == 3 && args[0].equals("convert")){
+			BufferedReader in = new BufferedReader(new FileReader(args[1]));
+			Writer writer = new Writer(args[2]);
+			String line;
+			int count = 0;
+			while((line = in.readLine()) != null){
+				if(line.isEmpty() || line.startsWith("SYMBOL"))
+					continue;
+				writer.append(DXFeedUtils.parseTrade(line));
+				++count;
+			}
+			in.close();
+			writer.close();
+			System.out.println("converted " + count + " trades to " + args[2]);
+		}
+		else if(args.length == 2 && args[0].equals("dump")){
+			Reader reader = openReader(args[1]);
+			while(reader.next())
+				System.out.println(DXFeedUtils.serializeTrade(reader.toTrade()));
+			reader.close();
+		}
+		else{
+			System.out.println("usage: TradeJournal convert TRADEFILE JOURNAL | TradeJournal dump JOURNAL");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package quotail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dxfeed.event.market.TimeAndSale;
+
+// bounded lock-free ring of trades with any number of producers and a single consumer. producers claim a slot
+// by advancing the tail with a CAS and publish it by bumping the slot's sequence number, so the consumer never
+// sees a half written slot and no producer waits on another. the consumer spins briefly and then parks when the
+// ring is empty, producers only unpark it when it has said it is waiting
+public class TradeRing {
+	private static final int SPINS = 100;
+	// upper bound on a single park, the loop rechecks the ring after every wake up
+	private static final long PARK_NANOS = 1000000;
+
+	private final int mask;
+	private final TimeAndSale[] trades;
+	private final long[] receivedAt;
+	// a slot is free for position p when its sequence is p and holds position p when its sequence is p + 1
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	// only written by the consumer, volatile so isEmpty can be called from other threads
+	private volatile long head;
+	private long lastReceivedAt;
+	private volatile Thread consumer;
+	private volatile boolean waiting;
+	private volatile boolean closed;
+
+	// the capacity is rounded up to a power of two
+	public TradeRing(int capacity){
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		trades = new TimeAndSale[size];
+		receivedAt = new long[size];
+		sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; ++i)
+			sequences.set(i, i);
+	}
+
+	// never blocks, returns false if the ring is full
+	public boolean offer(TimeAndSale trade, long receivedAt){
+		long position;
+		while(true){
+			position = tail.get();
+			long sequence = sequences.get((int)(position & mask));
+			if(sequence == position){
+				if(tail.compareAndSet(position, position + 1))
+					break;
+			}
+			else if(sequence < position){
+				// the consumer has not freed the slot a lap ago yet
+				return false;
+			}
+		}
+		int slot = (int)(position & mask);
+		trades[slot] = trade;
+		this.receivedAt[slot] = receivedAt;
+		sequences.set(slot, position + 1);
+		if(waiting){
+			Thread consumer = this.consumer;
+			if(consumer != null)
+				LockSupport.unpark(consumer);
+		}
+		return true;
+	}
+
+	// next trade or null if the ring is empty, consumer thread only
+	public TimeAndSale poll(){
+		long position = head;
+		int slot = (int)(position & mask);
+		if(sequences.get(slot) != position + 1)
+			return null;
+		TimeAndSale trade = trades[slot];
+		lastReceivedAt = receivedAt[slot];
+		trades[slot] = null;
+		sequences.set(slot, position + mask + 1);
+		head = position + 1;
+		return trade;
+	}
+
+	// next trade, waiting for one if the ring is empty. returns null once the ring is closed and drained.
+	// consumer thread only
+	public TimeAndSale take(){
+		consumer = Thread.currentThread();
+		int spins = 0;
+		while(true){
+			TimeAndSale trade = poll();
+			if(trade != null)
+				return trade;
+			if(closed)
+				return poll();
+			if(++spins < SPINS){
+				Thread.yield();
+				continue;
+			}
+			// say we are waiting before the last look, a producer publishing after it will see the flag
+			waiting = true;
+			trade = poll();
+			if(trade != null || closed){
+				waiting = false;
+				return trade != null ? trade : poll();
+			}
+			LockSupport.parkNanos(this, PARK_NANOS);
+			waiting = false;
+		}
+	}
+
+	// wall clock time the last polled trade was received from the feed
+	public long receivedAt(){
+		return lastReceivedAt;
+	}
+
+	public boolean isEmpty(){
+		return head == tail.get();
+	}
+
+	public int size(){
+		return (int)(tail.get() - head);
+	}
+
+	public int capacity(){
+		return mask + 1;
+	}
+
+	// no more trades will be offered, take returns null once the remaining ones are consumed
+	public void close(){
+		closed = true;
+		Thread consumer = this.consumer;
+		if(consumer != null)
+			LockSupport.unpark(consumer);
+	}
+}
@@ -0,0 +1,177 @@
+package quotail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+
+import com.dxfeed.event.market.TimeAndSale;
+
+// decouples the dxfeed listener thread from kafka. trades are put on a bounded buffer and a sender thread ships
+// them in batches of up to batchSize, waiting at most lingerMillis for a batch to fill. if the broker falls so far
+// behind that the buffer fills up, the real-time feed drops new trades and counts them rather than stalling event
+// delivery, replays wait for room instead so no trade is lost. trades are encoded on the sender thread, stamped
+// with the time they were received from the feed and the time they were sent
+public class TradeSender implements Runnable, TradeSink {
+	private static final long REPORT_INTERVAL = 10000;
+
+	static final class Pending {
+		final byte[] key;
+		final TimeAndSale trade;
+		final long receivedAt;
+		Pending(byte[] key, TimeAndSale trade, long receivedAt){
+			this.key = key;
+			this.trade = trade;
+			this.receivedAt = receivedAt;
+		}
+	}
+
+	private final Producer<byte[], byte[]> producer;
+	private final String topic;
+	private final ArrayBlockingQueue<Pending> buffer;
+	private final int batchSize;
+	private final long lingerMillis;
+	private final boolean blockWhenFull;
+
+	// backpressure metrics
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	// trades taken off the buffer and done with, sent or failed
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong fullWaits = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong sendNanos = new AtomicLong();
+	private volatile int maxDepth;
+	// set while trades are being dropped, so each run of drops is logged once
+	private volatile boolean dropping;
+
+	public TradeSender(Producer<byte[], byte[]> producer, String topic, int capacity, int batchSize, long lingerMillis, boolean blockWhenFull){
+		this.producer = producer;
+		this.topic = topic;
+		this.buffer = new ArrayBlockingQueue<Pending>(capacity);
+		this.batchSize = batchSize;
+		this.lingerMillis = lingerMillis;
+		this.blockWhenFull = blockWhenFull;
+	}
+
+	public TradeSender start(){
+		Thread sender = new Thread(this, "trade-sender");
+		sender.setDaemon(true);
+		sender.start();
+		return this;
+	}
+
+	// returns false if the trade was dropped because the buffer is full. only blocks when blockWhenFull is set
+	public boolean send(byte[] key, TimeAndSale trade, long receivedAt){
+		Pending pending = new Pending(key, trade, receivedAt);
+		if(!buffer.offer(pending)){
+			if(!blockWhenFull){
+				dropped.incrementAndGet();
+				if(!dropping){
+					dropping = true;
+					System.out.println("trade sender buffer full, dropping trades until kafka catches up");
+				}
+				return false;
+			}
+			fullWaits.incrementAndGet();
+			try{
+				buffer.put(pending);
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		if(dropping){
+			dropping = false;
+			System.out.println("trade sender buffer has room again, " + dropped.get() + " trades dropped so far");
+		}
+		enqueued.incrementAndGet();
+		int depth = buffer.size();
+		if(depth > maxDepth)
+			maxDepth = depth;
+		return true;
+	}
+
+	public void run(){
+		List<Pending> batch = new ArrayList<Pending>(batchSize);
+		List<KeyedMessage<byte[], byte[]>> messages = new ArrayList<KeyedMessage<byte[], byte[]>>(batchSize);
+		long nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+		try{
+			while(!Thread.currentThread().isInterrupted()){
+				Pending first = buffer.poll(REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+				if(first != null){
+					batch.add(first);
+					// linger for the rest of the batch
+					long lingerEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+					while(batch.size() < batchSize){
+						if(buffer.drainTo(batch, batchSize - batch.size()) > 0)
+							continue;
+						long remaining = lingerEnd - System.nanoTime();
+						if(remaining <= 0)
+							break;
+						Pending next = buffer.poll(remaining, TimeUnit.NANOSECONDS);
+						if(next == null)
+							break;
+						batch.add(next);
+					}
+					long sentAt = System.currentTimeMillis();
+					for(Pending pending : batch){
+						messages.add(new KeyedMessage<byte[], byte[]>(topic, pending.key, TradeSerializer.encode(pending.trade, pending.receivedAt, sentAt)));
+						Latency.RECEIVE_TO_SEND.recordMillis(sentAt - pending.receivedAt);
+					}
+					long start = System.nanoTime();
+					try{
+						producer.send(messages);
+						sent.addAndGet(batch.size());
+					}
+					catch(Exception e){
+						dropped.addAndGet(batch.size());
+						e.printStackTrace();
+					}
+					long elapsed = System.nanoTime() - start;
+					sendNanos.addAndGet(elapsed);
+					Latency.SEND.recordNanos(elapsed);
+					batches.incrementAndGet();
+					completed.addAndGet(batch.size());
+					batch.clear();
+					messages.clear();
+				}
+				if(System.currentTimeMillis() >= nextReport){
+					report();
+					nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+				}
+			}
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// wait until everything handed to send has gone out, used before exiting after a file replay
+	public void drain() throws InterruptedException{
+		while(completed.get() < enqueued.get())
+			Thread.sleep(10);
+		report();
+	}
+
+	public long getEnqueued(){ return enqueued.get(); }
+	public long getDropped(){ return dropped.get(); }
+	public long getSent(){ return sent.get(); }
+	public int getDepth(){ return buffer.size(); }
+	public int getMaxDepth(){ return maxDepth; }
+
+	private void report(){
+		long b = batches.get();
+		System.out.println(String.format("trade sender: enqueued %d, sent %d, dropped %d, waited for room %d times, depth %d (max %d of %d), %d batches, avg send %.2f ms",
+				enqueued.get(), sent.get(), dropped.get(), fullWaits.get(), buffer.size(), maxDepth, buffer.size() + buffer.remainingCapacity(),
+				b, b == 0 ? 0.0 : sendNanos.get() / 1e6 / b));
+		maxDepth = buffer.size();
+	}
+}
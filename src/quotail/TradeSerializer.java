@@ -1,74 +1,174 @@
 package quotail;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
+import kafka.serializer.Decoder;
 import kafka.serializer.Encoder;
 import kafka.utils.VerifiableProperties;
 
 import org.apache.kafka.common.serialization.Serializer;
 
+import com.dxfeed.event.market.Side;
 import com.dxfeed.event.market.TimeAndSale;
+import com.dxfeed.event.market.TimeAndSaleType;
 
-public class TradeSerializer implements Encoder<TimeAndSale>, Serializer<TimeAndSale>{
+// fixed layout binary codec for trades sent over kafka. all multi-byte fields are big endian
+//   version      1 byte
+//   symbol       2 byte length + ascii chars
+//   time         8 bytes
+//   sequence     4 bytes
+//   exchange     2 bytes
+//   size         8 bytes
+//   price        8 bytes
+//   bid          8 bytes
+//   ask          8 bytes
+//   flags        1 byte (bits 0-1 side, bit 2 spread leg, bits 3-4 type, bit 5 extended hours, bit 6 valid tick)
+//   conditions   2 byte length (-1 when null) + ascii chars
+// version 2 appends the latency stamps of the trade, see Latency
+//   received     8 bytes, epoch millis at which DXFeedStreamAll received the trade from the feed
+//   sent         8 bytes, epoch millis at which it was handed to kafka
+public class TradeSerializer implements Encoder<TimeAndSale>, Decoder<TimeAndSale>, Serializer<TimeAndSale>{
+	static final byte VERSION = 1;
+	static final byte STAMPED_VERSION = 2;
+	static final int FIXED_SIZE = 1 + 2 + 8 + 4 + 2 + 8 + 8 + 8 + 8 + 1 + 2;
+
+	static final int SIDE_MASK = 0x03;
+	static final int SPREAD_LEG = 0x04;
+	static final int TYPE_SHIFT = 3;
+	static final int TYPE_MASK = 0x03;
+	static final int ETH = 0x20;
+	static final int VALID_TICK = 0x40;
+
+	public TradeSerializer() {}
 
     public TradeSerializer(VerifiableProperties verifiableProperties) {
         /* This constructor must be present for successful compile. */
     }
-    
+
+	public static byte[] encode(TimeAndSale t){
+		return encode(t, VERSION, 0, 0);
+	}
+
+	// encode the trade along with the times it was received from the feed and sent to kafka
+	public static byte[] encode(TimeAndSale t, long receivedAt, long sentAt){
+		return encode(t, STAMPED_VERSION, receivedAt, sentAt);
+	}
+
+	private static byte[] encode(TimeAndSale t, byte version, long receivedAt, long sentAt){
+		String symbol = t.getEventSymbol();
+		String conditions = t.getExchangeSaleConditions();
+		int size = FIXED_SIZE + symbol.length() + (conditions == null ? 0 : conditions.length()) + (version == STAMPED_VERSION ? 16 : 0);
+		ByteBuffer buf = ByteBuffer.wrap(new byte[size]);
+		buf.put(version);
+		putAscii(buf, symbol);
+		buf.putLong(t.getTime());
+		buf.putInt(t.getSequence());
+		buf.putChar(t.getExchangeCode());
+		buf.putLong(t.getSize());
+		buf.putDouble(t.getPrice());
+		buf.putDouble(t.getBidPrice());
+		buf.putDouble(t.getAskPrice());
+		int flags = t.getAggressorSide().getCode() & SIDE_MASK;
+		if(t.isSpreadLeg())
+			flags |= SPREAD_LEG;
+		flags |= (t.getType().getCode() & TYPE_MASK) << TYPE_SHIFT;
+		if(t.isExtendedTradingHours())
+			flags |= ETH;
+		if(t.isValidTick())
+			flags |= VALID_TICK;
+		buf.put((byte)flags);
+		putAscii(buf, conditions);
+		if(version == STAMPED_VERSION){
+			buf.putLong(receivedAt);
+			buf.putLong(sentAt);
+		}
+		return buf.array();
+	}
+
+	public static TimeAndSale decode(byte[] bytes){
+		return decode(bytes, null);
+	}
+
+	// decode the trade, filling stamps (if given) with its receive and send times, or zeros when the message has none
+	public static TimeAndSale decode(byte[] bytes, long[] stamps){
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		byte version = buf.get();
+		if(version != VERSION && version != STAMPED_VERSION)
+			throw new IllegalArgumentException("unsupported trade encoding version " + version);
+		TimeAndSale t = new TimeAndSale(getAscii(buf));
+		t.setTime(buf.getLong());
+		t.setSequence(buf.getInt());
+		t.setExchangeCode(buf.getChar());
+		t.setSize(buf.getLong());
+		t.setPrice(buf.getDouble());
+		t.setBidPrice(buf.getDouble());
+		t.setAskPrice(buf.getDouble());
+		int flags = buf.get();
+		t.setAggressorSide(Side.valueOf(flags & SIDE_MASK));
+		t.setSpreadLeg((flags & SPREAD_LEG) != 0);
+		t.setType(TimeAndSaleType.valueOf((flags >> TYPE_SHIFT) & TYPE_MASK));
+		t.setExtendedTradingHours((flags & ETH) != 0);
+		t.setValidTick((flags & VALID_TICK) != 0);
+		t.setExchangeSaleConditions(getAscii(buf));
+		if(stamps != null){
+			stamps[0] = version == STAMPED_VERSION ? buf.getLong() : 0;
+			stamps[1] = version == STAMPED_VERSION ? buf.getLong() : 0;
+		}
+		return t;
+	}
+
+	private static void putAscii(ByteBuffer buf, String s){
+		if(s == null){
+			buf.putShort((short)-1);
+			return;
+		}
+		buf.putShort((short)s.length());
+		for(int i = 0; i < s.length(); ++i)
+			buf.put((byte)s.charAt(i));
+	}
+
+	private static String getAscii(ByteBuffer buf){
+		int length = buf.getShort();
+		if(length < 0)
+			return null;
+		char[] chars = new char[length];
+		for(int i = 0; i < length; ++i)
+			chars[i] = (char)(buf.get() & 0xff);
+		return new String(chars);
+	}
+
+	// returns null if the message is not a valid trade encoding
 	public TimeAndSale fromBytes(byte[] serializedTrade) {
-	    ByteArrayInputStream in = new ByteArrayInputStream(serializedTrade);
-	    TimeAndSale t = null;
-	    try{
-		    ObjectInputStream is = new ObjectInputStream(in);
-		    return (TimeAndSale)is.readObject();
-	    }
-	    catch(IOException e){
-	    	e.printStackTrace();
-	    }
-	    catch(ClassNotFoundException e){
-	    	e.printStackTrace();
-	    }
-	    return t;
+		return fromBytes(serializedTrade, null);
 	}
 
-	public byte[] toBytes(TimeAndSale trade) {
-        ByteArrayOutputStream b = new ByteArrayOutputStream();
+	public TimeAndSale fromBytes(byte[] serializedTrade, long[] stamps) {
 		try{
-	        ObjectOutputStream o = new ObjectOutputStream(b);
-	        o.writeObject(trade);
+			return decode(serializedTrade, stamps);
+		}
+		catch(BufferUnderflowException e){
+			e.printStackTrace();
 		}
-		catch(IOException e){
+		catch(IllegalArgumentException e){
 			e.printStackTrace();
 		}
-        return b.toByteArray();
+		return null;
+	}
+
+	public byte[] toBytes(TimeAndSale trade) {
+		return encode(trade);
 	}
 
 	public void close() {
-		// TODO Auto-generated method stub
-		
 	}
 
 	public void configure(Map<String, ?> arg0, boolean arg1) {
-		// TODO Auto-generated method stub
-		
 	}
 
-	public byte[] serialize(String arg0, TimeAndSale trade) {
-		System.out.println("BYTES ENCODED");
-        ByteArrayOutputStream b = new ByteArrayOutputStream();
-		try{
-	        ObjectOutputStream o = new ObjectOutputStream(b);
-	        o.writeObject(trade);
-		}
-		catch(IOException e){
-			e.printStackTrace();
-		}
-        return b.toByteArray();
+	public byte[] serialize(String topic, TimeAndSale trade) {
+		return encode(trade);
 	}
 
 }
@@ -0,0 +1,12 @@
+package quotail;
+
+import com.dxfeed.event.market.TimeAndSale;
+
+// where DXFeedStreamAll hands its trades, either kafka through a TradeSender or an in-process EmbeddedPipeline
+public interface TradeSink {
+	// hand off a trade keyed by its ticker, returns false if it was dropped
+	boolean send(byte[] key, TimeAndSale trade, long receivedAt);
+
+	// wait until every trade handed to send has been delivered, used before exiting after a file replay
+	void drain() throws InterruptedException;
+}
@@ -6,10 +6,14 @@ import kafka.javaapi.consumer.ConsumerConnector;
 
 import org.apache.commons.cli.*;
 
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
@@ -23,6 +27,7 @@ public class TradesConsumer {
     private static String zookeeperUrl = "localhost:2181";
     public static boolean drainQueue = false;
     public static boolean updateRedis = false;
+    private static long redisFlushInterval = 1000;
     
     public TradesConsumer(String a_groupId, String a_topic, String zookeeperUrl) {
         consumer = kafka.consumer.Consumer.createJavaConsumerConnector(
@@ -41,13 +46,20 @@ public class TradesConsumer {
         Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap = consumer.createMessageStreams(topicCountMap);
         List<KafkaStream<byte[], byte[]>> streams = consumerMap.get(topic);
 
+        // clustering state is shared by all streams, every producer and consumer thread works on it without locking
+        ConcurrentHashMap<String, Cluster> clusterMap = new ConcurrentHashMap<String, Cluster>(1 << 14, 0.75f, numPartitions * 2);
+        SpreadTracker spreadTracker = new SpreadTracker();
+        // aggregate volume is accumulated by all producers and flushed to redis periodically
+        RedisVolumeAggregator volumeAggregator = null;
+        if(updateRedis){
+        	volumeAggregator = new RedisVolumeAggregator(new JedisPool(new JedisPoolConfig(), "localhost"), redisFlushInterval);
+        	new Thread(volumeAggregator).start();
+        }
         int threadNumber = 0;
         for (final KafkaStream stream : streams) {
-        	HashMap<String, Cluster> clusterMap = new HashMap<String, Cluster>();
         	LinkedBlockingDeque<Cluster> clusterQueue = new LinkedBlockingDeque<Cluster>();
-        	SpreadTracker spreadTracker = new SpreadTracker();
         	ClusterConsumer clusterConsumer = new ClusterConsumer(clusterQueue, clusterMap, spreadTracker, clusterFile);
-        	new Thread(new ClusterProducer(stream, threadNumber, clusterQueue, clusterMap, spreadTracker, clusterConsumer)).start();
+        	new Thread(new ClusterProducer(stream, threadNumber, clusterQueue, clusterMap, spreadTracker, clusterConsumer, volumeAggregator)).start();
             new Thread(clusterConsumer).start();
             threadNumber++;
         }
@@ -73,11 +85,14 @@ public class TradesConsumer {
 				.withDescription("number of partitions in the kafka topic").create("partitions");
 		Option zookeeper = OptionBuilder.withArgName("zookeeper").hasArg()
 				.withDescription("host of zookeeper server").create("zookeeper");
+		Option redisFlush = OptionBuilder.withArgName("redis_flush_ms").hasArg()
+				.withDescription("interval in milliseconds at which aggregate volume is flushed to redis (default 1000)").create("redis_flush_ms");
 		options.addOption("drainqueue", false, "passively read in the kafka queue to quickly drain it");
 		options.addOption("update_redis", false, "update redis with aggregate volume numbers. Only one process should be doing this at a time");
 		options.addOption(clusterfile);
 		options.addOption(partitions);
 		options.addOption(zookeeper);
+		options.addOption(redisFlush);
 
 		CommandLineParser parser = new BasicParser();
 		try{
@@ -90,11 +105,13 @@ public class TradesConsumer {
 				numPartitions = Integer.parseInt(cmd.getOptionValue("partitions"));
 			if(cmd.hasOption("zookeeper"))
 				zookeeperUrl = cmd.getOptionValue("zookeeper");
+			if(cmd.hasOption("redis_flush_ms"))
+				redisFlushInterval = Long.parseLong(cmd.getOptionValue("redis_flush_ms"));
 		}catch(ParseException e){
 			System.out.println("error parsing arguments");
 			e.printStackTrace();
 			HelpFormatter formatter = new HelpFormatter();
-			formatter.printHelp("<-clusterfile FILENAME> <-partitions NUMBER> <-zookeeper URL> <--update_redis> <--drainqueue>", options);
+			formatter.printHelp("<-clusterfile FILENAME> <-partitions NUMBER> <-zookeeper URL> <--update_redis> <-redis_flush_ms MILLIS> <--drainqueue>", options);
 			System.exit(1);
 		}
 	}